@@ -0,0 +1,184 @@
+package com.github.openrealgps.lite;
+
+/**
+ * Keplerian orbital elements for up to {@link #MAX_SATELLITES} healthy satellites, from which every process computes
+ * the sky for its current fix instead of receiving satellite updates. Read from YUMA almanacs, with IDs
+ * numbered like {@code updateSatellites} PRNs for the other constellations (GLONASS 65-96, QZSS 193-200, BeiDou
+ * 201-235, Galileo 301-336) and their elements given in GPS time.
+ */
+public class Almanac {
+    public static final double ELEVATION_MASK = 5;
+    public static final int MAX_SATELLITES = 256;
+    private static final double MU = 3.986005e14;
+    private static final double EARTH_ROTATION = 7.2921151467e-5;
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_E2 = 6.69437999014e-3;
+    private static final long GPS_EPOCH = 315964800; // 1980-01-06 in Unix seconds
+    private static final int LEAP_SECONDS = 18;
+    private static final int WEEK_SECONDS = 604800;
+
+    final int count;
+    final int[] prn;
+    final int[] week;
+    final double[] eccentricity;
+    final double[] toa;
+    final double[] inclination;
+    final double[] rateOfRightAscension;
+    final double[] sqrtA;
+    final double[] rightAscension;
+    final double[] argumentOfPerigee;
+    final double[] meanAnomaly;
+
+    Almanac(int count) {
+        this.count = count;
+        this.prn = new int[count];
+        this.week = new int[count];
+        this.eccentricity = new double[count];
+        this.toa = new double[count];
+        this.inclination = new double[count];
+        this.rateOfRightAscension = new double[count];
+        this.sqrtA = new double[count];
+        this.rightAscension = new double[count];
+        this.argumentOfPerigee = new double[count];
+        this.meanAnomaly = new double[count];
+    }
+
+    /**
+     * @param now Unix time in milliseconds, used to extend 10-bit week numbers
+     */
+    public static Almanac parseYuma(String text, long now) {
+        String[] lines = text.split("\n");
+        int entries = 0;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon >= 0 && line.substring(0, colon).trim().equalsIgnoreCase("id")) {
+                entries++;
+            }
+        }
+        Almanac parsed = new Almanac(Math.min(entries, MAX_SATELLITES));
+        int count = 0;
+        int health = 0;
+        int currentWeek = (int) ((now / 1000 - GPS_EPOCH + LEAP_SECONDS) / WEEK_SECONDS);
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon < 0 || count >= parsed.count) {
+                continue;
+            }
+            String key = line.substring(0, colon).trim().toLowerCase();
+            String value = line.substring(colon + 1).trim();
+            if (key.equals("id")) {
+                parsed.prn[count] = Integer.parseInt(value);
+            } else if (key.equals("health")) {
+                health = Integer.parseInt(value);
+            } else if (key.startsWith("eccentricity")) {
+                parsed.eccentricity[count] = Double.parseDouble(value);
+            } else if (key.startsWith("time of applicability")) {
+                parsed.toa[count] = Double.parseDouble(value);
+            } else if (key.startsWith("orbital inclination")) {
+                parsed.inclination[count] = Double.parseDouble(value);
+            } else if (key.startsWith("rate of right ascen")) {
+                parsed.rateOfRightAscension[count] = Double.parseDouble(value);
+            } else if (key.startsWith("sqrt(a)")) {
+                parsed.sqrtA[count] = Double.parseDouble(value);
+            } else if (key.startsWith("right ascen at week")) {
+                parsed.rightAscension[count] = Double.parseDouble(value);
+            } else if (key.startsWith("argument of perigee")) {
+                parsed.argumentOfPerigee[count] = Double.parseDouble(value);
+            } else if (key.startsWith("mean anom")) {
+                parsed.meanAnomaly[count] = Double.parseDouble(value);
+            } else if (key.equals("week")) {
+                // Last field of each entry
+                int week = Integer.parseInt(value);
+                if (week < 1024) {
+                    week += 1024 * Math.round((currentWeek - week) / 1024.0f);
+                }
+                parsed.week[count] = week;
+                if (health == 0 && parsed.sqrtA[count] > 0) {
+                    count++;
+                }
+                health = 0;
+            }
+        }
+
+        Almanac almanac = new Almanac(count);
+        for (int i = 0; i < count; i++) {
+            almanac.set(i, parsed.prn[i], parsed.week[i], parsed.eccentricity[i], parsed.toa[i], parsed.inclination[i],
+                    parsed.rateOfRightAscension[i], parsed.sqrtA[i], parsed.rightAscension[i], parsed.argumentOfPerigee[i],
+                    parsed.meanAnomaly[i]);
+        }
+        return almanac;
+    }
+
+    void set(int i, int prn, int week, double eccentricity, double toa, double inclination, double rateOfRightAscension,
+             double sqrtA, double rightAscension, double argumentOfPerigee, double meanAnomaly) {
+        this.prn[i] = prn;
+        this.week[i] = week;
+        this.eccentricity[i] = eccentricity;
+        this.toa[i] = toa;
+        this.inclination[i] = inclination;
+        this.rateOfRightAscension[i] = rateOfRightAscension;
+        this.sqrtA[i] = sqrtA;
+        this.rightAscension[i] = rightAscension;
+        this.argumentOfPerigee[i] = argumentOfPerigee;
+        this.meanAnomaly[i] = meanAnomaly;
+    }
+
+    /**
+     * Puts every satellite above {@link #ELEVATION_MASK} into the updater's back buffer, up to
+     * {@link SatelliteUpdater#MAX_SVS} of them, without allocating.
+     *
+     * @param time Unix time in milliseconds
+     * @return the number of visible satellites
+     */
+    public int computeSky(double latitude, double longitude, double altitude, long time, SatelliteUpdater updater) {
+        double lat = Math.toRadians(latitude);
+        double lon = Math.toRadians(longitude);
+        double sinLat = Math.sin(lat), cosLat = Math.cos(lat);
+        double sinLon = Math.sin(lon), cosLon = Math.cos(lon);
+        double radius = WGS84_A / Math.sqrt(1 - WGS84_E2 * sinLat * sinLat);
+        double x0 = (radius + altitude) * cosLat * cosLon;
+        double y0 = (radius + altitude) * cosLat * sinLon;
+        double z0 = (radius * (1 - WGS84_E2) + altitude) * sinLat;
+        double gpsTime = time / 1000.0 - GPS_EPOCH + LEAP_SECONDS;
+
+        int visible = 0;
+        for (int i = 0; i < this.count && visible < SatelliteUpdater.MAX_SVS; i++) {
+            // IS-GPS-200 almanac orbit
+            double a = this.sqrtA[i] * this.sqrtA[i];
+            double e = this.eccentricity[i];
+            double tk = gpsTime - ((double) this.week[i] * WEEK_SECONDS + this.toa[i]);
+            double m = this.meanAnomaly[i] + Math.sqrt(MU / (a * a * a)) * tk;
+            double ecc = m;
+            for (int k = 0; k < 8; k++) {
+                ecc = m + e * Math.sin(ecc);
+            }
+            double v = Math.atan2(Math.sqrt(1 - e * e) * Math.sin(ecc), Math.cos(ecc) - e);
+            double phi = v + this.argumentOfPerigee[i];
+            double r = a * (1 - e * Math.cos(ecc));
+            double xp = r * Math.cos(phi), yp = r * Math.sin(phi);
+            double node = this.rightAscension[i] + (this.rateOfRightAscension[i] - EARTH_ROTATION) * tk
+                    - EARTH_ROTATION * this.toa[i];
+            double sinNode = Math.sin(node), cosNode = Math.cos(node);
+            double sinInc = Math.sin(this.inclination[i]), cosInc = Math.cos(this.inclination[i]);
+            double dx = xp * cosNode - yp * cosInc * sinNode - x0;
+            double dy = xp * sinNode + yp * cosInc * cosNode - y0;
+            double dz = yp * sinInc - z0;
+
+            double east = -sinLon * dx + cosLon * dy;
+            double north = -sinLat * cosLon * dx - sinLat * sinLon * dy + cosLat * dz;
+            double up = cosLat * cosLon * dx + cosLat * sinLon * dy + sinLat * dz;
+            double elevation = Math.toDegrees(Math.atan2(up, Math.sqrt(east * east + north * north)));
+            if (elevation < ELEVATION_MASK) {
+                continue;
+            }
+            double azimuth = Math.toDegrees(Math.atan2(east, north));
+            if (azimuth < 0) {
+                azimuth += 360;
+            }
+            // Stronger towards the zenith, with a fixed offset per satellite so they do not all look alike
+            double snr = 20 + 25 * Math.sin(Math.toRadians(elevation)) + this.prn[i] * 7 % 5 - 2;
+            updater.putSatellite(visible++, this.prn[i], (float) snr, (float) elevation, (float) azimuth);
+        }
+        return visible;
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.openrealgps.lite;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import de.robv.android.xposed.XposedHelpers;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * GNSS batching: while batched location callbacks are registered, every fix is appended to a bounded ring of
+ * primitives, and each callback receives the fixes it has not seen yet once its period has elapsed, once the ring is
+ * full if it asked to be woken then, or on {@link #flush()}. Fixes older than the ring's capacity are overwritten, as
+ * by a hardware FIFO. A callback with pending fixes gets one delayed delivery posted for the end of its period, so
+ * fixes are delivered even if the feed pauses, and nothing wakes up while there is nothing to deliver.
+ */
+public class BatchUpdater {
+    private static volatile BatchUpdater instance;
+
+    public static BatchUpdater getInstance() {
+        if (instance == null) {
+            synchronized (BatchUpdater.class) {
+                if (instance == null) {
+                    instance = new BatchUpdater(ModuleConfig.getInstance().getBatchSize());
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final ListenerRegistry<Object, BatchedCallbackWrapper> callbacks = new ListenerRegistry<>(new BatchedCallbackWrapper[0], true);
+
+    // Ring of fixes, guarded by the instance lock
+    @Getter
+    private final int capacity;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] altitudes;
+    private final float[] speeds;
+    private final float[] bearings;
+    private final float[] accuracies;
+    private final long[] timestamps;
+    private final long[] elapsedRealtimeNanos;
+    private long written;
+    @Getter
+    private long overwritten;
+
+    BatchUpdater(int capacity) {
+        this.capacity = capacity;
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.altitudes = new double[capacity];
+        this.speeds = new float[capacity];
+        this.bearings = new float[capacity];
+        this.accuracies = new float[capacity];
+        this.timestamps = new long[capacity];
+        this.elapsedRealtimeNanos = new long[capacity];
+    }
+
+    public boolean hasCallbacks() {
+        return !this.callbacks.isEmpty();
+    }
+
+    public int getCallbackCount() {
+        return this.callbacks.size();
+    }
+
+    public void update(LocationSnapshot location) {
+        BatchedCallbackWrapper[] wrappers = this.callbacks.snapshot();
+        if (wrappers.length == 0 || this.capacity == 0) {
+            return;
+        }
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            int i = (int) (this.written % this.capacity);
+            this.latitudes[i] = location.getLatitude();
+            this.longitudes[i] = location.getLongitude();
+            this.altitudes[i] = location.getAltitude();
+            this.speeds[i] = location.getSpeed();
+            this.bearings[i] = location.getBearing();
+            this.accuracies[i] = location.getAccuracy();
+            this.timestamps[i] = location.getTimestamp();
+            this.elapsedRealtimeNanos[i] = now;
+            this.written++;
+
+            for (BatchedCallbackWrapper wrapper : wrappers) {
+                long pending = this.written - wrapper.cursor;
+                if (pending > this.capacity) {
+                    this.overwritten += pending - this.capacity;
+                    wrapper.cursor = this.written - this.capacity;
+                    pending = this.capacity;
+                }
+                if (now - wrapper.lastDelivery >= wrapper.periodNanos || wrapper.wakeOnFifoFull && pending == this.capacity) {
+                    deliver(wrapper, now);
+                } else if (!wrapper.deliveryPosted) {
+                    postDelivery(wrapper, now);
+                }
+            }
+        }
+    }
+
+    private void postDelivery(BatchedCallbackWrapper wrapper, long now) {
+        wrapper.deliveryPosted = true;
+        // Capped so a period of Long.MAX_VALUE does not overflow the handler's uptime arithmetic
+        long delay = Math.min((wrapper.periodNanos - (now - wrapper.lastDelivery)) / 1000000 + 1, Long.MAX_VALUE / 2);
+        wrapper.handler.postDelayed(() -> deliverDue(wrapper), delay);
+    }
+
+    private synchronized void deliverDue(BatchedCallbackWrapper wrapper) {
+        wrapper.deliveryPosted = false;
+        if (this.callbacks.get(wrapper.callback) != wrapper || wrapper.cursor >= this.written) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (now - wrapper.lastDelivery >= wrapper.periodNanos) {
+            deliver(wrapper, now);
+        } else {
+            // Delivered early on a full ring or a flush since this was posted
+            postDelivery(wrapper, now);
+        }
+    }
+
+    /**
+     * Delivers every pending fix to every callback right away.
+     */
+    public synchronized void flush() {
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (BatchedCallbackWrapper wrapper : this.callbacks.snapshot()) {
+            deliver(wrapper, now);
+        }
+    }
+
+    private void deliver(BatchedCallbackWrapper wrapper, long now) {
+        long from = Math.max(wrapper.cursor, this.written - this.capacity);
+        wrapper.cursor = this.written;
+        wrapper.lastDelivery = now;
+        if (from >= this.written) {
+            return;
+        }
+        List<Location> batch = new ArrayList<>((int) (this.written - from));
+        for (long n = from; n < this.written; n++) {
+            int i = (int) (n % this.capacity);
+            Location location = new Location(LocationManager.GPS_PROVIDER);
+            location.setLatitude(this.latitudes[i]);
+            location.setLongitude(this.longitudes[i]);
+            location.setAltitude(this.altitudes[i]);
+            location.setSpeed(this.speeds[i]);
+            location.setBearing(this.bearings[i]);
+            location.setAccuracy(this.accuracies[i]);
+            location.setTime(this.timestamps[i]);
+            location.setElapsedRealtimeNanos(this.elapsedRealtimeNanos[i]);
+            batch.add(location);
+        }
+
+        PipelineStats stats = PipelineStats.getInstance();
+        long sendTime = stats.currentSendTime();
+        Hooks.executeCallback(() -> {
+            stats.recordDispatch(stats.getBatchCallbacks(), now, sendTime);
+            // BatchedLocationCallback is a system API, missing from the public SDK
+            XposedHelpers.callMethod(wrapper.callback, "onLocationBatch", batch);
+        }, wrapper.handler, null);
+    }
+
+    /**
+     * @param periodNanos longest time a fix waits in the ring before being delivered
+     * @param wakeOnFifoFull whether to deliver as soon as the ring is full, instead of letting it overwrite old fixes
+     */
+    public synchronized void addBatchedCallback(Object callback, long periodNanos, boolean wakeOnFifoFull, Handler handler) {
+        // Only fixes arriving after registration are batched
+        this.callbacks.put(callback, new BatchedCallbackWrapper(callback, periodNanos, wakeOnFifoFull, handler,
+                this.written, SystemClock.elapsedRealtimeNanos()));
+        LocalBroadcastReceiver.refresh();
+    }
+
+    public void removeBatchedCallback(Object callback) {
+        this.callbacks.remove(callback);
+        LocalBroadcastReceiver.refresh();
+    }
+
+    private static class BatchedCallbackWrapper {
+        private final Object callback;
+        private final long periodNanos;
+        private final boolean wakeOnFifoFull;
+        private final Handler handler;
+        // Delivery state, guarded by the updater's lock
+        private long cursor;
+        private long lastDelivery;
+        private boolean deliveryPosted;
+
+        private BatchedCallbackWrapper(Object callback, long periodNanos, boolean wakeOnFifoFull, Handler handler, long cursor, long lastDelivery) {
+            this.callback = callback;
+            this.periodNanos = periodNanos;
+            this.wakeOnFifoFull = wakeOnFifoFull;
+            this.handler = handler;
+            this.cursor = cursor;
+            this.lastDelivery = lastDelivery;
+        }
+    }
+}
@@ -1,14 +1,14 @@
 package com.github.openrealgps.lite;
 
-import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.location.*;
 import android.net.LocalServerSocket;
-import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import de.robv.android.xposed.IXposedHookLoadPackage;
 import de.robv.android.xposed.XC_MethodHook;
@@ -28,11 +28,19 @@ import java.util.function.Consumer;
 
 @Slf4j
 public class Hooks implements IXposedHookLoadPackage {
+    private static final String LOCATION_REQUEST_CLASS = "android.location.LocationRequest";
+    private static final String SYSTEM_PACKAGE = "android";
     private static LocalServerSocket serverLock;
     private static final AtomicBoolean hookApplied = new AtomicBoolean(false);
 
     @Override
     public void handleLoadPackage(XC_LoadPackage.LoadPackageParam lpparam) {
+        boolean target = ModuleConfig.getInstance().isTargetPackage(lpparam.packageName);
+        // The system server always competes for the server lock, so the API stays up while no target app is running
+        if (!target && !SYSTEM_PACKAGE.equals(lpparam.packageName)) {
+            return;
+        }
+        PipelineStats.getInstance().setProcessName(lpparam.processName);
         try {
             serverLock = new LocalServerSocket("OpenRealGPS_Lite_ServerLock");
             try {
@@ -45,16 +53,24 @@ public class Hooks implements IXposedHookLoadPackage {
             }
         } catch (Exception ignored) {
         }
+        if (!target) {
+            return;
+        }
 
         XposedBridge.hookAllConstructors(LocationManager.class, new XC_MethodHook() {
             @Override
             protected void beforeHookedMethod(MethodHookParam param) {
                 if (hookApplied.compareAndSet(false, true)) {
-                    XposedBridge.log("Applying hooks for " + lpparam.packageName);
+                    long start = SystemClock.elapsedRealtimeNanos();
                     try {
+                        PlatformBindings.getInstance();
                         Handler handler = new Handler(Looper.getMainLooper());
-                        new Thread(new LocalBroadcastReceiver(handler)).start();
-                        hookMethods(handler);
+                        SatelliteUpdater.getInstance().setDefaultHandler(handler);
+                        LocalBroadcastReceiver.init(handler);
+                        int count = hookMethods(handler);
+                        long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                        PipelineStats.getInstance().setHookInstallTime(micros);
+                        XposedBridge.log("Applied " + count + " hooks for " + lpparam.packageName + " in " + micros + " us");
                     } catch (Exception e) {
                         XposedBridge.log(String.valueOf(e));
                     }
@@ -73,7 +89,7 @@ public class Hooks implements IXposedHookLoadPackage {
         }
     }
 
-    private static void hookMethods(Handler defaultHandler) {
+    private static int hookMethods(Handler defaultHandler) {
         Map<String, XC_MethodHook> hooks = new ArrayMap<>(39);
         XC_MethodHook returnNull = new XC_MethodHook() {
             @Override
@@ -107,9 +123,41 @@ public class Hooks implements IXposedHookLoadPackage {
                 param.setResult(true);
             }
         });
-        hooks.put("addNmeaListener", returnTrue); // TODO NMEA may be supported in future versions
+        hooks.put("addNmeaListener", new XC_MethodHook() {
+            @SuppressWarnings("deprecation")
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                Handler handler = null;
+                Executor executor = null;
+                Object listener;
+                if (param.args[0] instanceof Executor) {
+                    executor = (Executor) param.args[0];
+                    listener = param.args[1];
+                } else {
+                    listener = param.args[0];
+                    if (param.args.length >= 2) {
+                        handler = (Handler) param.args[1];
+                    }
+                }
+                if (handler == null && executor == null) {
+                    handler = new Handler();
+                }
+                if (listener instanceof OnNmeaMessageListener) {
+                    NmeaUpdater.getInstance().addNmeaListener((OnNmeaMessageListener) listener, handler, executor);
+                } else {
+                    NmeaUpdater.getInstance().addNmeaListener((GpsStatus.NmeaListener) listener, handler);
+                }
+                param.setResult(true);
+            }
+        });
         hooks.put("addProximityAlert", returnNull);
-        hooks.put("flushGnssBatch", returnNull);
+        hooks.put("flushGnssBatch", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                BatchUpdater.getInstance().flush();
+                param.setResult(null);
+            }
+        });
         XC_MethodHook addGpsProvider = new XC_MethodHook() {
             @SuppressWarnings({"unchecked", "rawtypes"})
             @Override
@@ -138,16 +186,24 @@ public class Hooks implements IXposedHookLoadPackage {
                 } else {
                     provider = (String) XposedHelpers.getObjectField(param.args[0], "mProvider");
                 }
-                ((Consumer) param.args[3]).accept(LocationUpdater.getInstance().getAsLocation(provider));
+                LocationUpdater.getInstance().requestSingleLocation(provider, null, (Consumer) param.args[3], null,
+                        (Executor) param.args[2], (CancellationSignal) param.args[1], true);
                 param.setResult(null);
             }
         });
-        hooks.put("getGnssBatchSize", returnZero);
+        hooks.put("getGnssBatchSize", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                param.setResult(BatchUpdater.getInstance().getCapacity());
+            }
+        });
         hooks.put("getGnssCapabilities", new XC_MethodHook() {
-            @TargetApi(Build.VERSION_CODES.R)
             @Override
-            protected void beforeHookedMethod(MethodHookParam param) throws Exception {
-                param.setResult(XposedHelpers.findConstructorExact(GnssCapabilities.class, long.class).newInstance(0L));
+            protected void beforeHookedMethod(MethodHookParam param) {
+                Object capabilities = PlatformBindings.getInstance().getGnssCapabilities();
+                if (capabilities != null) {
+                    param.setResult(capabilities);
+                }
             }
         });
         hooks.put("getGnssHardwareModelName", returnNull);
@@ -172,13 +228,12 @@ public class Hooks implements IXposedHookLoadPackage {
         });
         hooks.put("getProvider", new XC_MethodHook() {
             @Override
-            protected void afterHookedMethod(MethodHookParam param) throws Exception {
+            protected void afterHookedMethod(MethodHookParam param) {
                 if (!param.hasThrowable() && param.getResult() == null && LocationManager.GPS_PROVIDER.equals(param.args[0])) {
-                    Class<?> propClass = XposedHelpers.findClass("com.android.internal.location.ProviderProperties", null);
-                    Object props = XposedHelpers.findConstructorExact(propClass, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, int.class, int.class)
-                            .newInstance(false, true, false, false, true, true, true, Criteria.POWER_MEDIUM, Criteria.ACCURACY_FINE);
-                    param.setResult(XposedHelpers.findConstructorExact(LocationProvider.class, String.class, propClass)
-                            .newInstance(LocationManager.GPS_PROVIDER, props));
+                    LocationProvider provider = PlatformBindings.getInstance().getGpsProvider();
+                    if (provider != null) {
+                        param.setResult(provider);
+                    }
                 }
             }
         });
@@ -194,7 +249,21 @@ public class Hooks implements IXposedHookLoadPackage {
         hooks.put("isProviderEnabled", returnTrue);
         hooks.put("isProviderEnabledForUser", returnTrue);
         hooks.put("registerAntennaInfoListener", returnFalse);
-        hooks.put("registerGnssBatchedLocationCallback", returnFalse);
+        hooks.put("registerGnssBatchedLocationCallback", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                if (BatchUpdater.getInstance().getCapacity() == 0) {
+                    param.setResult(false);
+                    return;
+                }
+                Handler handler = (Handler) param.args[3];
+                if (handler == null) {
+                    handler = new Handler();
+                }
+                BatchUpdater.getInstance().addBatchedCallback(param.args[2], (long) param.args[0], (boolean) param.args[1], handler);
+                param.setResult(true);
+            }
+        });
         hooks.put("registerGnssMeasurementsCallback", returnFalse);
         hooks.put("registerGnssNavigationMessageCallback", returnFalse);
         hooks.put("registerGnssStatusCallback", new XC_MethodHook() {
@@ -228,7 +297,13 @@ public class Hooks implements IXposedHookLoadPackage {
                 param.setResult(null);
             }
         });
-        hooks.put("removeNmeaListener", returnNull);
+        hooks.put("removeNmeaListener", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                NmeaUpdater.getInstance().removeNmeaListener(param.args[0]);
+                param.setResult(null);
+            }
+        });
         hooks.put("removeProximityAlert", returnNull);
         hooks.put("removeUpdates", new XC_MethodHook() {
             @Override
@@ -252,8 +327,21 @@ public class Hooks implements IXposedHookLoadPackage {
                 PendingIntent pendingIntent = null;
                 Executor executor = null;
                 Looper looper = null;
-                for (int i = 1; i < param.args.length; i++) {
-                    if (param.args[i] instanceof LocationListener) {
+                long minTime = -1;
+                float minDistance = -1;
+                for (int i = 0; i < param.args.length; i++) {
+                    if (param.args[i] instanceof Long && minTime < 0) {
+                        minTime = (Long) param.args[i];
+                    } else if (param.args[i] instanceof Float && minDistance < 0) {
+                        minDistance = (Float) param.args[i];
+                    } else if (param.args[i] != null && LOCATION_REQUEST_CLASS.equals(param.args[i].getClass().getName())) {
+                        String requestProvider = (String) XposedHelpers.getObjectField(param.args[i], "mProvider");
+                        if (requestProvider != null) {
+                            provider = requestProvider;
+                        }
+                        minTime = XposedHelpers.getLongField(param.args[i], "mInterval");
+                        minDistance = XposedHelpers.getFloatField(param.args[i], "mSmallestDisplacement");
+                    } else if (param.args[i] instanceof LocationListener) {
                         locationListener = (LocationListener) param.args[i];
                     } else if (param.args[i] instanceof Looper) {
                         looper = (Looper) param.args[i];
@@ -268,10 +356,10 @@ public class Hooks implements IXposedHookLoadPackage {
                     if (executor == null) {
                         handler = (looper == null) ? new Handler() : new Handler(looper);
                     }
-                    LocationUpdater.getInstance().addLocationListener(provider, locationListener, handler, executor);
+                    LocationUpdater.getInstance().addLocationListener(provider, locationListener, handler, executor, minTime, minDistance);
                 } else if (pendingIntent != null) {
                     Context context = (Context) XposedHelpers.getObjectField(param.thisObject, "mContext");
-                    LocationUpdater.getInstance().addPendingIntent(provider, pendingIntent, context);
+                    LocationUpdater.getInstance().addPendingIntent(provider, pendingIntent, context, minTime, minDistance);
                 }
                 param.setResult(null);
             }
@@ -289,20 +377,29 @@ public class Hooks implements IXposedHookLoadPackage {
                         looper = (Looper) param.args[2];
                     }
                     Handler handler = looper == null ? new Handler() : new Handler(looper);
-                    String finalProvider = provider;
-                    executeCallback(() -> ((LocationListener) param.args[1]).onLocationChanged(LocationUpdater.getInstance().getAsLocation(finalProvider)), handler, null);
+                    LocationListener listener = (LocationListener) param.args[1];
+                    LocationUpdater.getInstance().requestSingleLocation(provider, listener, listener::onLocationChanged, handler, null, null, false);
                 } else if (param.args[1] instanceof PendingIntent) {
+                    PendingIntent pendingIntent = (PendingIntent) param.args[1];
                     Context context = (Context) XposedHelpers.getObjectField(param.thisObject, "mContext");
-                    try {
-                        ((PendingIntent) param.args[1]).send(context, 0, new Intent().putExtra(LocationManager.KEY_LOCATION_CHANGED, LocationUpdater.getInstance().getAsLocation(provider)));
-                    } catch (Exception ignored) {
-                    }
+                    LocationUpdater.getInstance().requestSingleLocation(provider, pendingIntent, location -> {
+                        try {
+                            pendingIntent.send(context, 0, new Intent().putExtra(LocationManager.KEY_LOCATION_CHANGED, location));
+                        } catch (Exception ignored) {
+                        }
+                    }, null, null, null, false);
                 }
                 param.setResult(null);
             }
         });
         hooks.put("unregisterAntennaInfoListener", returnNull);
-        hooks.put("unregisterGnssBatchedLocationCallback", returnNull);
+        hooks.put("unregisterGnssBatchedLocationCallback", new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) {
+                BatchUpdater.getInstance().removeBatchedCallback(param.args[0]);
+                param.setResult(true);
+            }
+        });
         hooks.put("unregisterGnssMeasurementsCallback", returnNull);
         hooks.put("unregisterGnssNavigationMessageCallback", returnNull);
         hooks.put("unregisterGnssStatusCallback", new XC_MethodHook() {
@@ -313,13 +410,16 @@ public class Hooks implements IXposedHookLoadPackage {
             }
         });
 
+        int count = 0;
         for (Method method : LocationManager.class.getDeclaredMethods()) {
             if (Modifier.isPublic(method.getModifiers())) {
                 XC_MethodHook hook = hooks.get(method.getName());
                 if (hook != null) {
                     XposedBridge.hookMethod(method, hook);
+                    count++;
                 }
             }
         }
+        return count;
     }
 }
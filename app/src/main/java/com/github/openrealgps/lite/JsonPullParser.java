@@ -0,0 +1,262 @@
+package com.github.openrealgps.lite;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal pull parser reading JSON in place from a byte array, so decoding updates does not create any objects.
+ * Strings are only compared against expected ASCII constants, never materialized.
+ */
+public class JsonPullParser {
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+
+    public void reset(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    public void beginArray() {
+        hasNext();
+        expect('[');
+    }
+
+    public void beginObject() {
+        hasNext();
+        expect('{');
+    }
+
+    public boolean hasNext() {
+        byte c = peek();
+        if (c == ',') {
+            this.pos++;
+            c = peek();
+        }
+        return c != ']' && c != '}';
+    }
+
+    public void endArray() {
+        hasNext();
+        expect(']');
+    }
+
+    public void endObject() {
+        hasNext();
+        expect('}');
+    }
+
+    /**
+     * Reads an object key and returns its index in {@code names}, or -1 if it matches none of them.
+     */
+    public int nextName(byte[][] names) {
+        int index = nextString(names);
+        expect(':');
+        return index;
+    }
+
+    /**
+     * Reads a string value and returns its index in {@code values}, or -1 if it matches none of them.
+     */
+    public int nextString(byte[][] values) {
+        hasNext();
+        int start = stringStart();
+        int end = stringEnd(start);
+        for (int i = 0; i < values.length; i++) {
+            if (regionEquals(start, end, values[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int nextInt() {
+        return (int) nextDouble();
+    }
+
+    public long nextLong() {
+        hasNext();
+        skipWhitespace();
+        int start = this.pos;
+        boolean negative = consume('-');
+        long value = 0;
+        int digits = 0;
+        while (this.pos < this.limit && isDigit(this.buf[this.pos])) {
+            value = value * 10 + (this.buf[this.pos++] - '0');
+            digits++;
+        }
+        if (digits == 0 || digits > 18 || (this.pos < this.limit && isNumberPart(this.buf[this.pos]))) {
+            this.pos = start;
+            return (long) nextDouble();
+        }
+        return negative ? -value : value;
+    }
+
+    public double nextDouble() {
+        hasNext();
+        skipWhitespace();
+        int start = this.pos;
+        boolean negative = consume('-');
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        while (this.pos < this.limit && isDigit(this.buf[this.pos])) {
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (this.buf[this.pos] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+            }
+            this.pos++;
+        }
+        if (consume('.')) {
+            while (this.pos < this.limit && isDigit(this.buf[this.pos])) {
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (this.buf[this.pos] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                }
+                this.pos++;
+            }
+        }
+        if (this.pos < this.limit && (this.buf[this.pos] == 'e' || this.buf[this.pos] == 'E')) {
+            this.pos++;
+            boolean negativeExponent = consume('-');
+            if (!negativeExponent) {
+                consume('+');
+            }
+            int e = 0;
+            while (this.pos < this.limit && isDigit(this.buf[this.pos])) {
+                e = Math.min(e * 10 + (this.buf[this.pos++] - '0'), 1000);
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (this.pos == start || (this.pos == start + 1 && negative)) {
+            throw error("Number expected");
+        }
+
+        if (exponent < -22 || exponent > 22) {
+            return Double.parseDouble(new String(this.buf, start, this.pos - start, StandardCharsets.US_ASCII));
+        }
+        // Exact when the mantissa fits in 53 bits, otherwise off by at most an ulp or two
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    public int skipValue() {
+        hasNext();
+        byte c = peek();
+        switch (c) {
+            case '[':
+            case '{': {
+                int count = 0;
+                this.pos++;
+                while (hasNext()) {
+                    skipValue();
+                    if (c == '{') {
+                        expect(':');
+                        skipValue();
+                    }
+                    count++;
+                }
+                this.pos++;
+                return count;
+            }
+            case '"':
+                stringEnd(stringStart());
+                return 0;
+            default:
+                while (this.pos < this.limit) {
+                    byte b = this.buf[this.pos];
+                    if (b == ',' || b == ']' || b == '}' || isWhitespace(b)) {
+                        break;
+                    }
+                    this.pos++;
+                }
+                return 0;
+        }
+    }
+
+    private int stringStart() {
+        expect('"');
+        return this.pos;
+    }
+
+    private int stringEnd(int start) {
+        while (this.pos < this.limit) {
+            byte b = this.buf[this.pos++];
+            if (b == '\\') {
+                this.pos++;
+            } else if (b == '"') {
+                return this.pos - 1;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private boolean regionEquals(int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (this.buf[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte peek() {
+        skipWhitespace();
+        if (this.pos >= this.limit) {
+            throw error("Unexpected end of input");
+        }
+        return this.buf[this.pos];
+    }
+
+    private void expect(char c) {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        this.pos++;
+    }
+
+    private boolean consume(char c) {
+        if (this.pos < this.limit && this.buf[this.pos] == c) {
+            this.pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.limit && isWhitespace(this.buf[this.pos])) {
+            this.pos++;
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + this.pos);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isNumberPart(byte b) {
+        return b == '.' || b == 'e' || b == 'E';
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.openrealgps.lite;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the style of HdrHistogram: 16 linear sub-buckets per power of two, so every recorded value
+ * is kept within about 6%. Recording is a couple of atomic adds, without locks or allocation.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(indexOf(value));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(value);
+        long current;
+        while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) / 2;
+    }
+
+    /**
+     * @return {@code {count, mean, p50, p90, p99, p999, max}}, percentiles at bucket midpoints
+     */
+    public JSONObject toJson() throws Exception {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+            total += counts[i];
+        }
+        JSONObject json = new JSONObject()
+                .put("count", total)
+                .put("mean", total == 0 ? 0 : (double) this.sum.get() / this.count.get())
+                .put("max", this.max.get());
+        int bucket = 0;
+        long seen = counts[0];
+        for (int p = 0; p < PERCENTILES.length; p++) {
+            long rank = (long) Math.ceil(total * PERCENTILES[p] / 100);
+            while (seen < rank && bucket < BUCKETS - 1) {
+                seen += counts[++bucket];
+            }
+            json.put(PERCENTILE_NAMES[p], total == 0 ? 0 : Math.min(valueOf(bucket), this.max.get()));
+        }
+        return json;
+    }
+}
@@ -0,0 +1,65 @@
+package com.github.openrealgps.lite;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Coalescing delivery to one listener: at most one delivery is queued on its handler or executor,
+ * and a newer value replaces the queued one instead of piling up behind a busy looper.
+ */
+public class LatestValueSlot<T> implements Runnable {
+    private static final AtomicLong queueDepth = new AtomicLong();
+    private static final AtomicLong droppedStale = new AtomicLong();
+
+    private final AtomicReference<T> pending = new AtomicReference<>();
+    private final Consumer<T> consumer;
+    private final Handler handler;
+    private final Executor executor;
+    private final AtomicLong callbacks;
+    private volatile long postedNanos;
+    private volatile long sendTime;
+
+    /**
+     * @param callbacks {@link PipelineStats} counter for the callback type
+     */
+    public LatestValueSlot(Consumer<T> consumer, Handler handler, Executor executor, AtomicLong callbacks) {
+        this.consumer = consumer;
+        this.handler = handler;
+        this.executor = executor;
+        this.callbacks = callbacks;
+    }
+
+    public static long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public static long getDroppedStale() {
+        return droppedStale.get();
+    }
+
+    public void offer(T value) {
+        this.sendTime = PipelineStats.getInstance().currentSendTime();
+        if (this.pending.getAndSet(value) == null) {
+            queueDepth.incrementAndGet();
+            this.postedNanos = SystemClock.elapsedRealtimeNanos();
+            Hooks.executeCallback(this, this.handler, this.executor);
+        } else {
+            droppedStale.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        T value = this.pending.getAndSet(null);
+        if (value != null) {
+            queueDepth.decrementAndGet();
+            PipelineStats.getInstance().recordDispatch(this.callbacks, this.postedNanos, this.sendTime);
+            this.consumer.accept(value);
+        }
+    }
+}
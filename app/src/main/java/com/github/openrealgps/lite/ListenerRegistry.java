@@ -0,0 +1,84 @@
+package com.github.openrealgps.lite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Copy-on-write registry: dispatch iterates a published array without locking, while add and remove
+ * look registrations up in a keyed index and swap in a new array.
+ */
+public class ListenerRegistry<K, V> {
+    private final Map<K, V> index;
+    private volatile V[] snapshot;
+
+    /**
+     * @param empty        empty array used as the initial snapshot and to create arrays of the right type
+     * @param identityKeys whether keys are compared by identity (listener objects) or by equals (PendingIntent)
+     */
+    public ListenerRegistry(V[] empty, boolean identityKeys) {
+        this.index = identityKeys ? new IdentityHashMap<>() : new HashMap<>();
+        this.snapshot = empty;
+    }
+
+    public V[] snapshot() {
+        return this.snapshot;
+    }
+
+    public boolean isEmpty() {
+        return this.snapshot.length == 0;
+    }
+
+    public int size() {
+        return this.snapshot.length;
+    }
+
+    public synchronized V get(K key) {
+        return this.index.get(key);
+    }
+
+    /**
+     * Adds a registration, replacing the one previously registered with the same key.
+     *
+     * @return the replaced registration, or null
+     */
+    public synchronized V put(K key, V value) {
+        V old = this.index.put(key, value);
+        V[] current = this.snapshot;
+        V[] next;
+        if (old != null) {
+            next = current.clone();
+            next[indexOf(current, old)] = value;
+        } else {
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = value;
+        }
+        this.snapshot = next;
+        return old;
+    }
+
+    /**
+     * @return the removed registration, or null if the key was not registered
+     */
+    public synchronized V remove(K key) {
+        V old = this.index.remove(key);
+        if (old != null) {
+            V[] current = this.snapshot;
+            int i = indexOf(current, old);
+            V[] next = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            this.snapshot = next;
+        }
+        return old;
+    }
+
+    private static int indexOf(Object[] array, Object value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Registry index out of sync");
+    }
+}
@@ -1,19 +1,50 @@
 package com.github.openrealgps.lite;
 
 import android.os.Handler;
+import android.os.SystemClock;
 import lombok.extern.slf4j.Slf4j;
-import org.json.JSONArray;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public class LocalBroadcastReceiver implements Runnable {
+    public static final long MAX_PACKET_AGE = 2000;
+    public static final int MAX_RECEIVE_BUFFER = 1 << 20;
+    public static final long LINGER_TIME = 5000;
+    private static final long RESIZE_INTERVAL = 10000;
+
+    private static final AtomicLong lost = new AtomicLong();
+    private static final AtomicLong stale = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+    private static final AtomicLong closedRingOverruns = new AtomicLong();
+    private static volatile SharedRing sharedRing;
+
+    // Lifecycle, guarded by the class lock
+    private static Handler defaultHandler;
+    private static LocalBroadcastReceiver running;
+    private static int generation;
+
     private final DatagramSocket broadcastReceiver;
     private final Handler handler;
     private final byte[] buf;
+    private final ByteBuffer bufView;
+    private final DatagramPacket packet;
+    private final JsonPullParser parser = new JsonPullParser();
+    private final SharedRing.PacketHandler ringHandler = this::process;
+    private final PipelineStats stats = PipelineStats.getInstance();
+    private SharedRing ring;
+    private boolean ringFailed;
+    private boolean hasSequence;
+    private int lastSequence;
+    private long lastSendTime;
+    private long lastResize;
 
     public LocalBroadcastReceiver(Handler handler) throws Exception {
         this.broadcastReceiver = new DatagramSocket(null);
@@ -22,36 +53,218 @@ public class LocalBroadcastReceiver implements Runnable {
         this.broadcastReceiver.bind(new InetSocketAddress(LocalServer.BROADCAST_PORT));
         this.handler = handler;
         this.buf = new byte[LocalServer.MAX_BODY];
+        this.bufView = ByteBuffer.wrap(this.buf);
+        this.packet = new DatagramPacket(this.buf, this.buf.length);
+    }
+
+    /**
+     * Sets the handler updates are decoded for, after which the receiver runs whenever anything is subscribed.
+     */
+    public static synchronized void init(Handler handler) {
+        defaultHandler = handler;
+        refresh();
+    }
+
+    /**
+     * Starts the receiver for the first subscriber and stops it once nothing has been subscribed for
+     * {@link #LINGER_TIME}, so idle processes are not woken by every broadcast. The updaters keep their last snapshots
+     * meanwhile, and the motion model is paused. Called after every registration change.
+     */
+    public static synchronized void refresh() {
+        LocationUpdater.getInstance().getMotionModel().refresh();
+        if (defaultHandler == null) {
+            return;
+        }
+        boolean subscribed = LocationUpdater.getInstance().hasSubscribers() || SatelliteUpdater.getInstance().hasSubscribers();
+        int current = ++generation;
+        if (subscribed && running == null) {
+            try {
+                running = new LocalBroadcastReceiver(defaultHandler);
+                new Thread(running, "OpenRealGPS-Receiver").start();
+            } catch (Exception e) {
+                log.warn("Failed to start broadcast receiver: {}", String.valueOf(e));
+            }
+        } else if (!subscribed && running != null) {
+            defaultHandler.postDelayed(() -> stopIfIdle(current), LINGER_TIME);
+        }
+    }
+
+    private static synchronized void stopIfIdle(int expected) {
+        if (expected == generation && running != null) {
+            running.close();
+            running = null;
+        }
+    }
+
+    // Called from the handler thread, the ring is released by the receiver thread once it sees the socket closed
+    private void close() {
+        this.broadcastReceiver.close();
+    }
+
+    private void releaseRing() {
+        if (this.ring != null) {
+            closedRingOverruns.addAndGet(this.ring.getOverruns());
+            if (sharedRing == this.ring) {
+                sharedRing = null;
+            }
+            // The mapping itself goes once the ring is collected
+            try {
+                this.ring.close();
+            } catch (IOException e) {
+                log.warn("Failed to close shared ring: {}", String.valueOf(e));
+            }
+        }
     }
 
     @Override
     public void run() {
         while (!broadcastReceiver.isClosed()) {
-            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            packet.setLength(buf.length);
             try {
                 broadcastReceiver.receive(packet);
             } catch (IOException e) {
-                log.warn("Failed to receive broadcast packet: {}", String.valueOf(e));
+                if (!broadcastReceiver.isClosed()) {
+                    log.warn("Failed to receive broadcast packet: {}", String.valueOf(e));
+                }
                 break;
             }
 
-            try {
-                JSONArray root = new JSONArray(new String(packet.getData(), packet.getOffset(), packet.getLength()));
-                String updateType = root.optString(0);
-                switch (updateType) {
-                    case "updateLocation":
-                        LocationUpdater.getInstance().update(root.getJSONArray(2).getJSONObject(0));
-                        break;
-                    case "updateSatellites":
-                        SatelliteUpdater.getInstance().update(root.getJSONArray(2).getJSONArray(0), this.handler);
-                        break;
-                    default:
-                        log.warn("Unknown update type: {}", updateType);
-                        break;
+            this.stats.getPacketsReceived().incrementAndGet();
+            this.bufView.limit(packet.getOffset() + packet.getLength()).position(packet.getOffset());
+            if (WireFormat.isBinary(this.bufView)) {
+                if (WireFormat.typeOf(this.bufView) == WireFormat.TYPE_STATS) {
+                    replyStats();
+                    continue;
                 }
-            } catch (Exception e) {
-                log.warn("Failed to process broadcast data: {}", String.valueOf(e));
+                if (!checkSequence(WireFormat.sequenceOf(this.bufView), WireFormat.sendTimeOf(this.bufView))) {
+                    continue;
+                }
+                if (WireFormat.typeOf(this.bufView) == WireFormat.TYPE_RING) {
+                    drainRing();
+                    continue;
+                }
+            }
+            process(this.bufView, packet.getData(), packet.getOffset(), packet.getLength());
+        }
+        releaseRing();
+    }
+
+    /**
+     * @return false if the packet is older than one already processed
+     */
+    private boolean checkSequence(int sequence, long sendTime) {
+        if (this.hasSequence) {
+            int delta = sequence - this.lastSequence;
+            // A lower sequence with a later send time means the server restarted
+            if (delta <= 0 && sendTime <= this.lastSendTime) {
+                stale.incrementAndGet();
+                return false;
+            }
+            if (delta > 1) {
+                lost.addAndGet(delta - 1);
+                growReceiveBuffer();
+            }
+        }
+        this.hasSequence = true;
+        this.lastSequence = sequence;
+        this.lastSendTime = sendTime;
+        return true;
+    }
+
+    private void growReceiveBuffer() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - this.lastResize < RESIZE_INTERVAL) {
+            return;
+        }
+        this.lastResize = now;
+        try {
+            int size = this.broadcastReceiver.getReceiveBufferSize();
+            if (size < MAX_RECEIVE_BUFFER) {
+                this.broadcastReceiver.setReceiveBufferSize(Math.min(size * 2, MAX_RECEIVE_BUFFER));
+                log.info("Broadcast packets lost, receive buffer grown to {} bytes", this.broadcastReceiver.getReceiveBufferSize());
+            }
+        } catch (SocketException e) {
+            log.warn("Failed to grow receive buffer: {}", String.valueOf(e));
+        }
+    }
+
+    private void drainRing() {
+        if (this.ring == null) {
+            if (!this.ringFailed) {
+                try {
+                    this.ring = SharedRing.open(ModuleConfig.getInstance().getRingPath());
+                    sharedRing = this.ring;
+                } catch (Exception e) {
+                    this.ringFailed = true;
+                    log.warn("Failed to map shared ring, asking the server to broadcast over UDP: {}", String.valueOf(e));
+                }
+            }
+            if (this.ringFailed) {
+                // Repeated for every doorbell, in case the server missed an earlier request
+                replyRingUnavailable();
+                return;
+            }
+        }
+        this.ring.drain(this.ringHandler);
+    }
+
+    private void process(ByteBuffer view, byte[] data, int offset, int length) {
+        boolean binary = WireFormat.isBinary(view);
+        long sendTime = binary ? WireFormat.sendTimeOf(view) : 0;
+        if (binary && SystemClock.elapsedRealtime() - sendTime > MAX_PACKET_AGE) {
+            expired.incrementAndGet();
+            return;
+        }
+        long start = System.nanoTime();
+        boolean parsed = false;
+        this.stats.beginPacket(sendTime);
+        try {
+            if (binary) {
+                WireFormat.decode(view, this.handler);
+            } else {
+                this.parser.reset(data, offset, length);
+                WireFormat.decodeJson(this.parser, this.handler);
             }
+            parsed = true;
+        } catch (Exception e) {
+            log.warn("Failed to process broadcast data: {}", String.valueOf(e));
+        } finally {
+            this.stats.endPacket(start, parsed);
+        }
+    }
+
+    private void replyRingUnavailable() {
+        try {
+            byte[] reply = WireFormat.encodeHeaderOnly(WireFormat.TYPE_RING_UNAVAILABLE);
+            this.broadcastReceiver.send(new DatagramPacket(reply, reply.length, this.packet.getSocketAddress()));
+        } catch (Exception e) {
+            log.warn("Failed to ask for UDP broadcasts: {}", String.valueOf(e));
+        }
+    }
+
+    private void replyStats() {
+        try {
+            byte[] reply = this.stats.toJson().toString().getBytes(StandardCharsets.UTF_8);
+            this.broadcastReceiver.send(new DatagramPacket(reply, reply.length, this.packet.getSocketAddress()));
+        } catch (Exception e) {
+            log.warn("Failed to reply with stats: {}", String.valueOf(e));
         }
     }
+
+    public static long getLost() {
+        return lost.get();
+    }
+
+    public static long getStale() {
+        return stale.get();
+    }
+
+    public static long getExpired() {
+        return expired.get();
+    }
+
+    public static long getRingOverruns() {
+        SharedRing ring = sharedRing;
+        return closedRingOverruns.get() + (ring != null ? ring.getOverruns() : 0);
+    }
 }
@@ -0,0 +1,89 @@
+package com.github.openrealgps.lite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Lowest-latency ingestion for local producers: one update per datagram on loopback. Frames already in the binary
+ * wire format are only checked for completeness and rebroadcast as is, skipping JSON entirely. JSON frames are
+ * {@code [method, id, params]} calls, answered with an {@code [id, status, result]} datagram unless the id is null.
+ */
+@Slf4j
+public class LocalDatagramServer implements Runnable {
+    private final LocalServer server;
+    private final DatagramSocket socket;
+
+    public LocalDatagramServer(LocalServer server, int port) throws IOException {
+        this.server = server;
+        this.socket = new DatagramSocket(port, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "OpenRealGPS-DatagramServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        byte[] buf = new byte[LocalServer.MAX_BODY];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        while (!this.socket.isClosed()) {
+            packet.setLength(buf.length);
+            try {
+                this.socket.receive(packet);
+            } catch (IOException e) {
+                log.warn("Failed to receive datagram: {}", String.valueOf(e));
+                break;
+            }
+            int length = packet.getLength();
+            if (length == 0) {
+                continue;
+            }
+            if (buf[0] != '[') {
+                if (WireFormat.isValidUpdate(buf, length)) {
+                    try {
+                        this.server.broadcast(Arrays.copyOf(buf, length));
+                    } catch (IOException e) {
+                        log.warn("Failed to broadcast datagram update: {}", String.valueOf(e));
+                    }
+                } else {
+                    log.warn("Dropped malformed datagram of {} bytes", length);
+                }
+                continue;
+            }
+            handleCall(Arrays.copyOf(buf, length), packet);
+        }
+    }
+
+    private void handleCall(byte[] body, DatagramPacket packet) {
+        Object id = null;
+        JSONArray reply;
+        try {
+            JSONArray root = new JSONArray(new String(body, StandardCharsets.UTF_8));
+            id = root.opt(1);
+            if (root.length() < 3) {
+                throw new IllegalArgumentException("Expected [method, id, params]");
+            }
+            reply = this.server.call(root, body);
+        } catch (Exception e) {
+            reply = new JSONArray().put(1).put(String.valueOf(e));
+        }
+        if (id != null && id != JSONObject.NULL) {
+            byte[] ack = new JSONArray().put(id).put(reply.opt(0)).put(reply.opt(1)).toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                this.socket.send(new DatagramPacket(ack, ack.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                log.warn("Failed to reply to datagram call: {}", String.valueOf(e));
+            }
+        }
+    }
+}
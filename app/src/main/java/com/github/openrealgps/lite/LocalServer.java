@@ -1,29 +1,62 @@
 package com.github.openrealgps.lite;
 
+import android.os.SystemClock;
 import cn.imaq.autumn.http.protocol.AutumnHttpRequest;
 import cn.imaq.autumn.http.protocol.AutumnHttpResponse;
 import cn.imaq.autumn.http.server.AutumnHttpServer;
 import cn.imaq.autumn.http.server.HttpServerOptions;
 import cn.imaq.autumn.http.server.protocol.AutumnHttpHandler;
+import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 public class LocalServer implements AutumnHttpHandler {
     public static final int HTTP_PORT = 9767;
     public static final int BROADCAST_PORT = 9768;
+    public static final int STREAM_PORT = 9769;
+    public static final int DATAGRAM_PORT = 9770;
     public static final String BROADCAST_ADDR = "127.255.255.255";
-    public static final int MAX_BODY = 10240;
+    public static final int MAX_BODY = WireFormat.MAX_SIZE;
+    public static final int MAX_REQUEST_BODY = 65536;
+    public static final long MAX_BATCH_OFFSET = 60000;
+    public static final int STATS_TIMEOUT = 300;
+    public static final long ALMANAC_INTERVAL = 5000;
+    public static final int MAX_ALMANAC_FILE = 1 << 20;
 
     private final AutumnHttpServer server;
     private DatagramSocket broadcastSocket;
     private InetAddress broadcastAddress;
+    private SharedRing ring;
+    private byte[] ringDoorbell;
+    private volatile boolean binaryBroadcast = true;
+    private int sequence;
+    private final AtomicLong rejected = new AtomicLong();
+    private TrackPlayer player;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> almanacBroadcast;
+    private final Object statsLock = new Object();
+    private DatagramSocket statsSocket;
+    private Map<Integer, JSONObject> statsReplies = new LinkedHashMap<>();
+    private long lastStatsRequest;
 
     public LocalServer(int port) {
         this.server = new AutumnHttpServer(HttpServerOptions.builder()
@@ -32,8 +65,11 @@ public class LocalServer implements AutumnHttpHandler {
                 .handler(this)
                 .workerCount(1)
                 .executor(new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
-                        new LinkedBlockingQueue<>(10), new ThreadPoolExecutor.AbortPolicy()))
-                .maxBodyBytes(MAX_BODY)
+                        new LinkedBlockingQueue<>(10), (r, executor) -> {
+                    this.rejected.incrementAndGet();
+                    throw new RejectedExecutionException("HTTP request queue is full");
+                }))
+                .maxBodyBytes(MAX_REQUEST_BODY)
                 .build());
     }
 
@@ -41,6 +77,389 @@ public class LocalServer implements AutumnHttpHandler {
         this.server.start();
         this.broadcastSocket = new DatagramSocket();
         this.broadcastAddress = InetAddress.getByName(BROADCAST_ADDR);
+        String ringPath = ModuleConfig.getInstance().getRingPath();
+        if (!ringPath.isEmpty()) {
+            try {
+                openRing(ringPath);
+                Thread thread = new Thread(this::receiveRingReplies, "OpenRealGPS-RingReplies");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                log.warn("Shared ring unavailable, broadcasting over UDP only: {}", String.valueOf(e));
+            }
+        }
+        // Optional transports, HTTP keeps working if their ports are taken
+        try {
+            new LocalStreamServer(this, STREAM_PORT).start();
+        } catch (IOException e) {
+            log.warn("Stream server unavailable on port {}: {}", STREAM_PORT, String.valueOf(e));
+        }
+        try {
+            new LocalDatagramServer(this, DATAGRAM_PORT).start();
+        } catch (IOException e) {
+            log.warn("Datagram server unavailable on port {}: {}", DATAGRAM_PORT, String.valueOf(e));
+        }
+    }
+
+    synchronized void openRing(String path) throws IOException {
+        this.ring = SharedRing.create(path);
+        this.ringDoorbell = WireFormat.encodeHeaderOnly(WireFormat.TYPE_RING);
+    }
+
+    public synchronized void broadcast(byte[] packet) throws IOException {
+        packet = prepareBroadcast(packet);
+        this.broadcastSocket.send(new DatagramPacket(packet, packet.length, this.broadcastAddress, BROADCAST_PORT));
+    }
+
+    /**
+     * Stamps a binary packet with the next sequence and publishes it to the ring if there is one.
+     *
+     * @return the datagram to send: the ring doorbell, or the packet itself if it is JSON, which carries no sequence
+     * and always goes out over UDP
+     */
+    synchronized byte[] prepareBroadcast(byte[] packet) {
+        if (!WireFormat.stamp(packet, this.sequence + 1, SystemClock.elapsedRealtime())) {
+            return packet;
+        }
+        this.sequence++;
+        if (this.ring != null && this.ring.publish(packet)) {
+            WireFormat.copyStamp(packet, this.ringDoorbell);
+            return this.ringDoorbell;
+        }
+        return packet;
+    }
+
+    /**
+     * Waits for a receiver to answer a doorbell with {@link WireFormat#TYPE_RING_UNAVAILABLE}, then stops using the
+     * ring so that process still gets every update.
+     */
+    private void receiveRingReplies() {
+        byte[] buf = new byte[WireFormat.HEADER_SIZE];
+        DatagramPacket reply = new DatagramPacket(buf, buf.length);
+        ByteBuffer view = ByteBuffer.wrap(buf);
+        while (!this.broadcastSocket.isClosed()) {
+            reply.setLength(buf.length);
+            try {
+                this.broadcastSocket.receive(reply);
+            } catch (IOException e) {
+                log.warn("Failed to receive ring reply: {}", String.valueOf(e));
+                return;
+            }
+            view.limit(reply.getLength()).position(0);
+            if (WireFormat.isBinary(view) && WireFormat.typeOf(view) == WireFormat.TYPE_RING_UNAVAILABLE) {
+                closeRing();
+                return;
+            }
+        }
+    }
+
+    private synchronized void closeRing() {
+        if (this.ring == null) {
+            return;
+        }
+        log.warn("A process cannot map the shared ring, broadcasting over UDP from now on");
+        try {
+            this.ring.close();
+        } catch (IOException e) {
+            log.warn("Failed to close shared ring: {}", String.valueOf(e));
+        }
+        this.ring = null;
+    }
+
+    /**
+     * Schedules every entry of a batch, validating and encoding them all first so a bad entry rejects the whole batch.
+     *
+     * @param entries {@code [method, offset, params]} arrays, offsets in milliseconds from now
+     */
+    private int scheduleBatch(JSONArray entries) throws Exception {
+        byte[][] packets = new byte[entries.length()][];
+        long[] offsets = new long[entries.length()];
+        for (int i = 0; i < entries.length(); i++) {
+            JSONArray entry = entries.getJSONArray(i);
+            switch (entry.optString(0)) {
+                case "updateLocation":
+                case "updateSatellites":
+                    packets[i] = this.binaryBroadcast ? WireFormat.encode(entry) : checkSize(entry.toString().getBytes());
+                    break;
+                case "updateMotion":
+                    packets[i] = WireFormat.encode(entry);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported batch method: " + entry.optString(0));
+            }
+            offsets[i] = entry.getLong(1);
+            if (offsets[i] < 0 || offsets[i] > MAX_BATCH_OFFSET) {
+                throw new IllegalArgumentException("Batch offset out of range: " + offsets[i]);
+            }
+        }
+
+        ScheduledExecutorService scheduler = getScheduler();
+        for (int i = 0; i < packets.length; i++) {
+            byte[] packet = packets[i];
+            scheduler.schedule(() -> {
+                try {
+                    broadcast(packet);
+                } catch (IOException e) {
+                    log.warn("Failed to broadcast batch entry: {}", String.valueOf(e));
+                }
+            }, offsets[i], TimeUnit.MILLISECONDS);
+        }
+        return packets.length;
+    }
+
+    /**
+     * Holds JSON updates broadcast as is to the receivers' packet size.
+     */
+    private static byte[] checkSize(byte[] packet) {
+        if (packet.length > MAX_BODY) {
+            throw new IllegalArgumentException("Update longer than " + MAX_BODY + " bytes");
+        }
+        return packet;
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "OpenRealGPS-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return this.scheduler;
+    }
+
+    /**
+     * Asks every receiver for its {@link PipelineStats} with a header-only broadcast, and returns the replies to the
+     * previous request without waiting, so HTTP workers are never held up. Replies are collected by their own thread,
+     * keyed by pid; receivers usually answer within {@link #STATS_TIMEOUT} milliseconds.
+     */
+    private JSONObject collectStats() throws Exception {
+        Map<Integer, JSONObject> replies;
+        long age;
+        synchronized (this.statsLock) {
+            if (this.statsSocket == null) {
+                this.statsSocket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+                Thread thread = new Thread(this::receiveStats, "OpenRealGPS-Stats");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            replies = this.statsReplies;
+            long now = SystemClock.elapsedRealtime();
+            age = this.lastStatsRequest != 0 ? now - this.lastStatsRequest : -1;
+            this.statsReplies = new LinkedHashMap<>();
+            this.lastStatsRequest = now;
+            byte[] request = WireFormat.encodeHeaderOnly(WireFormat.TYPE_STATS);
+            this.statsSocket.send(new DatagramPacket(request, request.length, this.broadcastAddress, BROADCAST_PORT));
+        }
+        JSONArray processes = new JSONArray();
+        for (JSONObject reply : replies.values()) {
+            processes.put(reply);
+        }
+        return new JSONObject()
+                .put("server", new JSONObject()
+                        .put("sequence", getSequence())
+                        .put("rejectedRequests", this.rejected.get()))
+                .put("age", age)
+                .put("processes", processes);
+    }
+
+    private void receiveStats() {
+        byte[] buf = new byte[MAX_BODY];
+        DatagramPacket reply = new DatagramPacket(buf, buf.length);
+        while (true) {
+            reply.setLength(buf.length);
+            try {
+                this.statsSocket.receive(reply);
+                JSONObject stats = new JSONObject(new String(buf, 0, reply.getLength(), StandardCharsets.UTF_8));
+                synchronized (this.statsLock) {
+                    // A late reply counts towards the next request, replacing none from the same process
+                    this.statsReplies.put(stats.optInt("pid"), stats);
+                }
+            } catch (IOException e) {
+                log.warn("Failed to receive stats reply: {}", String.valueOf(e));
+                return;
+            } catch (Exception e) {
+                log.warn("Dropped malformed stats reply: {}", String.valueOf(e));
+            }
+        }
+    }
+
+    private synchronized int getSequence() {
+        return this.sequence;
+    }
+
+    private synchronized void startPlayback(JSONObject params) throws Exception {
+        if (this.player != null) {
+            this.player.stop();
+        }
+        this.player = new TrackPlayer(this, params.getString("path"), params.optDouble("speed", 1), params.optBoolean("loop", false));
+        if (params.has("position")) {
+            this.player.seek((long) (params.getDouble("position") * 1000));
+        }
+        this.player.start();
+    }
+
+    /**
+     * Loads a YUMA almanac from {@code path} or inline {@code yuma} text, or clears it given neither, and keeps
+     * rebroadcasting it so processes that start receiving later pick it up.
+     *
+     * @return the number of healthy satellites loaded
+     */
+    private synchronized int setAlmanac(JSONObject params) throws Exception {
+        String text = null;
+        if (params != null && params.has("path")) {
+            try (RandomAccessFile file = new RandomAccessFile(params.getString("path"), "r")) {
+                if (file.length() > MAX_ALMANAC_FILE) {
+                    throw new IllegalArgumentException("Almanac file too large");
+                }
+                byte[] data = new byte[(int) file.length()];
+                file.readFully(data);
+                text = new String(data, StandardCharsets.UTF_8);
+            }
+        } else if (params != null && params.has("yuma")) {
+            text = params.getString("yuma");
+        }
+        Almanac almanac = text != null ? Almanac.parseYuma(text, System.currentTimeMillis()) : null;
+        if (almanac != null && almanac.count == 0) {
+            throw new IllegalArgumentException("No healthy satellites in almanac");
+        }
+
+        if (this.almanacBroadcast != null) {
+            this.almanacBroadcast.cancel(false);
+            this.almanacBroadcast = null;
+        }
+        byte[] packet = WireFormat.encodeAlmanac(almanac);
+        broadcast(packet);
+        if (almanac != null) {
+            this.almanacBroadcast = getScheduler().scheduleAtFixedRate(() -> {
+                try {
+                    broadcast(packet);
+                } catch (IOException e) {
+                    log.warn("Failed to rebroadcast almanac: {}", String.valueOf(e));
+                }
+            }, ALMANAC_INTERVAL, ALMANAC_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        return almanac != null ? almanac.count : 0;
+    }
+
+    private synchronized TrackPlayer getPlayer() {
+        return this.player;
+    }
+
+    /**
+     * Runs one API call, shared by the HTTP handler and the stream server.
+     *
+     * @param body the raw request, rebroadcast as is when the JSON broadcast format is selected
+     * @return {@code [status, result]}
+     */
+    JSONArray call(JSONArray root, byte[] body) throws Exception {
+        int status = 0;
+        Object result = null;
+        switch (root.optString(0)) {
+            case "ping":
+                result = 0;
+                break;
+            case "updateLocation":
+            case "updateSatellites":
+            case "updateMotion":
+                if (this.broadcastSocket != null) {
+                    broadcast(this.binaryBroadcast || "updateMotion".equals(root.optString(0)) ? WireFormat.encode(root) : checkSize(body));
+                } else {
+                    status = 1;
+                    result = "Socket connection failed";
+                }
+                break;
+            case "updateBatch":
+                if (this.broadcastSocket != null) {
+                    result = scheduleBatch(root.getJSONArray(2).getJSONArray(0));
+                } else {
+                    status = 1;
+                    result = "Socket connection failed";
+                }
+                break;
+            case "setAlmanac":
+                if (this.broadcastSocket != null) {
+                    result = setAlmanac(root.getJSONArray(2).optJSONObject(0));
+                } else {
+                    status = 1;
+                    result = "Socket connection failed";
+                }
+                break;
+            case "getStats":
+                if (this.broadcastSocket != null) {
+                    result = collectStats();
+                } else {
+                    status = 1;
+                    result = "Socket connection failed";
+                }
+                break;
+            case "setBroadcastFormat":
+                switch (root.getJSONArray(2).optString(0)) {
+                    case "binary":
+                        this.binaryBroadcast = true;
+                        break;
+                    case "json":
+                        this.binaryBroadcast = false;
+                        break;
+                    default:
+                        status = 1;
+                        result = "Unknown broadcast format";
+                        break;
+                }
+                break;
+            case "startPlayback":
+                if (this.broadcastSocket != null) {
+                    startPlayback(root.getJSONArray(2).getJSONObject(0));
+                } else {
+                    status = 1;
+                    result = "Socket connection failed";
+                }
+                break;
+            case "getPlaybackStatus":
+                TrackPlayer player = getPlayer();
+                result = player != null ? player.getStatus() : new JSONObject().put("state", "stopped");
+                break;
+            case "pausePlayback":
+            case "resumePlayback":
+            case "seekPlayback":
+            case "setPlaybackSpeed":
+            case "stopPlayback":
+                player = getPlayer();
+                if (player == null || player.isStopped()) {
+                    status = 1;
+                    result = "No track is playing";
+                    break;
+                }
+                switch (root.optString(0)) {
+                    case "pausePlayback":
+                        player.pause();
+                        break;
+                    case "resumePlayback":
+                        player.resume();
+                        break;
+                    case "seekPlayback":
+                        player.seek((long) (root.getJSONArray(2).getDouble(0) * 1000));
+                        break;
+                    case "setPlaybackSpeed":
+                        player.setSpeed(root.getJSONArray(2).getDouble(0));
+                        break;
+                    default:
+                        player.stop();
+                        break;
+                }
+                break;
+            case "getRealLocation":
+            case "setDataSource":
+            case "setHardwareEnabled":
+                status = 1;
+                result = "Unsupported in OpenRealGPS Lite";
+                break;
+            default:
+                status = 1;
+                result = "Unknown method";
+                break;
+        }
+        return new JSONArray().put(status).put(result);
     }
 
     @Override
@@ -49,36 +468,10 @@ public class LocalServer implements AutumnHttpHandler {
             if ("POST".equals(request.getMethod())) {
                 JSONArray root = new JSONArray(new String(request.getBody()));
                 if (root.length() >= 3) {
-                    int status = 0;
-                    Object result = null;
-                    switch (root.optString(0)) {
-                        case "ping":
-                            result = 0;
-                            break;
-                        case "updateLocation":
-                        case "updateSatellites":
-                            if (this.broadcastSocket != null) {
-                                this.broadcastSocket.send(new DatagramPacket(request.getBody(), request.getBody().length, this.broadcastAddress, BROADCAST_PORT));
-                            } else {
-                                status = 1;
-                                result = "Socket connection failed";
-                            }
-                            break;
-                        case "getRealLocation":
-                        case "setDataSource":
-                        case "setHardwareEnabled":
-                            status = 1;
-                            result = "Unsupported in OpenRealGPS Lite";
-                            break;
-                        default:
-                            status = 1;
-                            result = "Unknown method";
-                            break;
-                    }
                     return AutumnHttpResponse.builder()
                             .status(200)
                             .contentType("application/json")
-                            .body(new JSONArray().put(status).put(result).toString().getBytes())
+                            .body(call(root, request.getBody()).toString().getBytes())
                             .build();
                 }
             }
@@ -0,0 +1,153 @@
+package com.github.openrealgps.lite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived NDJSON ingestion: a producer connects once and writes one {@code [method, id, params]} call per line,
+ * skipping HTTP parsing and response building on every update. Calls with a null id are fire-and-forget, any other
+ * id is echoed back as an ack line {@code [id, status, result]}. Acks are flushed once the input is drained.
+ */
+@Slf4j
+public class LocalStreamServer implements Runnable {
+    public static final int MAX_CONNECTIONS = 4;
+
+    private final LocalServer server;
+    private final ServerSocket serverSocket;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public LocalStreamServer(LocalServer server, int port) throws IOException {
+        this.server = server;
+        this.serverSocket = new ServerSocket(port, MAX_CONNECTIONS, InetAddress.getByName("127.0.0.1"));
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "OpenRealGPS-StreamServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!this.serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = this.serverSocket.accept();
+            } catch (IOException e) {
+                log.warn("Failed to accept stream connection: {}", String.valueOf(e));
+                break;
+            }
+            if (this.connections.incrementAndGet() > MAX_CONNECTIONS) {
+                this.connections.decrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+            Thread thread = new Thread(() -> {
+                try {
+                    serve(socket);
+                } finally {
+                    this.connections.decrementAndGet();
+                    closeQuietly(socket);
+                }
+            }, "OpenRealGPS-Stream-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        byte[] line = new byte[LocalServer.MAX_REQUEST_BODY];
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            int length = 0;
+            boolean overflow = false;
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (b != '\n') {
+                    if (length < line.length) {
+                        line[length++] = (byte) b;
+                    } else {
+                        overflow = true;
+                    }
+                    continue;
+                }
+                if (overflow) {
+                    log.warn("Dropped stream call longer than {} bytes", LocalServer.MAX_REQUEST_BODY);
+                    // The id comes first, so it can be read from the part that fit
+                    writeAck(out, leadingId(line, length), 1, "Call longer than " + LocalServer.MAX_REQUEST_BODY + " bytes");
+                } else if (length > 0) {
+                    handleLine(Arrays.copyOf(line, length), out);
+                }
+                length = 0;
+                overflow = false;
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Stream connection failed: {}", String.valueOf(e));
+        }
+    }
+
+    private void handleLine(byte[] body, OutputStream out) throws IOException {
+        Object id = null;
+        JSONArray reply;
+        try {
+            JSONArray root = new JSONArray(new String(body, StandardCharsets.UTF_8));
+            id = root.opt(1);
+            if (root.length() < 3) {
+                throw new IllegalArgumentException("Expected [method, id, params]");
+            }
+            reply = this.server.call(root, body);
+        } catch (Exception e) {
+            reply = new JSONArray().put(1).put(String.valueOf(e));
+        }
+        writeAck(out, id, reply.opt(0), reply.opt(1));
+    }
+
+    private static void writeAck(OutputStream out, Object id, Object status, Object result) throws IOException {
+        if (id != null && id != JSONObject.NULL) {
+            out.write(new JSONArray().put(id).put(status).put(result).toString().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+    }
+
+    /**
+     * @return the id of a call that was cut short, or null if even that did not fit
+     */
+    private static Object leadingId(byte[] line, int length) {
+        try {
+            JSONTokener tokener = new JSONTokener(new String(line, 0, length, StandardCharsets.UTF_8));
+            if (tokener.nextClean() != '[') {
+                return null;
+            }
+            tokener.nextValue();
+            return tokener.nextClean() == ',' ? tokener.nextValue() : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.github.openrealgps.lite;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public final class LocationSnapshot {
+    private final double latitude;
+
+    private final double longitude;
+
+    private final double altitude;
+
+    private final float speed;
+
+    private final float bearing;
+
+    private final float accuracy;
+
+    private final long timestamp;
+}
@@ -7,19 +7,24 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.SystemClock;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.Setter;
-import org.json.JSONObject;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Objects;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class LocationUpdater {
+    public static final long ONE_SHOT_TIMEOUT = 30000;
+
     private static volatile LocationUpdater instance;
 
     public static LocationUpdater getInstance() {
@@ -34,114 +39,278 @@ public class LocationUpdater {
     }
 
     @Setter
-    private int satelliteCount;
-    private double latitude, longitude, altitude;
-    private float speed, bearing, accuracy;
-    private long timestamp;
+    private volatile int satelliteCount;
+    @Getter
+    private volatile LocationSnapshot snapshot;
+
+    private final ListenerRegistry<LocationListener, LocationListenerWrapper> locationListenerWrappers = new ListenerRegistry<>(new LocationListenerWrapper[0], true);
+    private final ListenerRegistry<PendingIntent, PendingIntentWrapper> pendingIntentWrappers = new ListenerRegistry<>(new PendingIntentWrapper[0], false);
+    // One-shot requests made before the first fix, whoever removes a request first completes it
+    private final ListenerRegistry<OneShotRequest, OneShotRequest> oneShotRequests = new ListenerRegistry<>(new OneShotRequest[0], true);
+    private ScheduledThreadPoolExecutor oneShotTimer;
+
+    // Locations built from the current snapshot, handed out as copies until the snapshot or satellite count changes
+    private volatile LocationTemplates templates = LocationTemplates.EMPTY;
+    private volatile Bundle satelliteExtras;
 
-    private final List<LocationListenerWrapper> locationListenerWrappers = new LinkedList<>();
-    private final List<PendingIntentWrapper> pendingIntentWrappers = new LinkedList<>();
+    // Locations materialized for the update being dispatched, one per provider, only touched by the updating thread
+    private final String[] materializedProviders = new String[4];
+    private final Location[] materializedLocations = new Location[4];
+    private final Intent[] materializedIntents = new Intent[4];
+    private int materializedCount;
+
+    @Getter
+    private final MotionModel motionModel = new MotionModel(this);
 
     private LocationUpdater() {
     }
 
-    public void update(JSONObject data) throws Exception {
-        if (data == null) {
-            return;
+    public boolean hasSubscribers() {
+        return !this.locationListenerWrappers.isEmpty() || !this.pendingIntentWrappers.isEmpty() || !this.oneShotRequests.isEmpty()
+                || NmeaUpdater.getInstance().hasListeners() || BatchUpdater.getInstance().hasCallbacks();
+    }
+
+    public int getLocationListenerCount() {
+        return this.locationListenerWrappers.size();
+    }
+
+    public int getPendingIntentCount() {
+        return this.pendingIntentWrappers.size();
+    }
+
+    public void update(double latitude, double longitude, double altitude, float speed, float bearing, float accuracy, long timestamp) {
+        if (this.motionModel.isRunning()) {
+            this.motionModel.stop();
         }
+        publish(latitude, longitude, altitude, speed, bearing, accuracy, timestamp);
+    }
 
-        if (this.locationListenerWrappers.size() > 0 || this.pendingIntentWrappers.size() > 0) {
-            this.latitude = data.getDouble("latitude");
-            this.longitude = data.getDouble("longitude");
-            this.altitude = data.getDouble("altitude");
-            this.speed = (float) data.getDouble("speed");
-            this.bearing = (float) data.getDouble("bearing");
-            this.accuracy = (float) data.getDouble("accuracy");
-            this.timestamp = data.getLong("timestamp");
+    // Called by the receiver and by the motion model, so dispatch state is guarded by the instance lock
+    synchronized void publish(double latitude, double longitude, double altitude, float speed, float bearing, float accuracy, long timestamp) {
+        SatelliteUpdater.getInstance().updateSky(latitude, longitude, altitude, timestamp);
+        if (hasSubscribers()) {
+            LocationSnapshot snapshot = new LocationSnapshot(latitude, longitude, altitude, speed, bearing, accuracy, timestamp);
+            this.snapshot = snapshot;
 
-            if (this.locationListenerWrappers.size() > 0) {
-                synchronized (this.locationListenerWrappers) {
-                    for (LocationListenerWrapper wrapper : this.locationListenerWrappers) {
-                        Hooks.executeCallback(() -> wrapper.listener.onLocationChanged(getAsLocation(wrapper.provider)), wrapper.handler, wrapper.executor);
-                    }
+            long now = SystemClock.elapsedRealtime();
+            PipelineStats stats = PipelineStats.getInstance();
+            long sendTime = stats.currentSendTime();
+            for (LocationListenerWrapper wrapper : this.locationListenerWrappers.snapshot()) {
+                if (wrapper.throttle != null && !wrapper.throttle.accept(snapshot, now)) {
+                    continue;
+                }
+                Location location = this.materializedLocations[materialize(snapshot, wrapper.provider)];
+                if (wrapper.slot != null) {
+                    wrapper.slot.offer(location);
+                } else {
+                    long posted = SystemClock.elapsedRealtimeNanos();
+                    Hooks.executeCallback(() -> {
+                        stats.recordDispatch(stats.getLocationCallbacks(), posted, sendTime);
+                        wrapper.listener.onLocationChanged(new Location(location));
+                    }, wrapper.handler, wrapper.executor);
+                }
+            }
+            for (PendingIntentWrapper wrapper : this.pendingIntentWrappers.snapshot()) {
+                if (wrapper.throttle != null && !wrapper.throttle.accept(snapshot, now)) {
+                    continue;
+                }
+                int i = materialize(snapshot, wrapper.provider);
+                if (this.materializedIntents[i] == null) {
+                    this.materializedIntents[i] = new Intent().putExtra(LocationManager.KEY_LOCATION_CHANGED, this.materializedLocations[i]);
+                }
+                try {
+                    wrapper.pendingIntent.send(wrapper.context, 0, this.materializedIntents[i]);
+                    stats.getPendingIntentsSent().incrementAndGet();
+                } catch (Exception e) {
+                    removePendingIntent(wrapper.pendingIntent);
                 }
             }
-            if (this.pendingIntentWrappers.size() > 0) {
-                synchronized (this.pendingIntentWrappers) {
-                    for (PendingIntentWrapper wrapper : this.pendingIntentWrappers) {
-                        try {
-                            wrapper.pendingIntent.send(wrapper.context, 0, new Intent().putExtra(LocationManager.KEY_LOCATION_CHANGED, getAsLocation(wrapper.provider)));
-                        } catch (Exception e) {
-                            removePendingIntent(wrapper.pendingIntent);
-                        }
+            OneShotRequest[] oneShots = this.oneShotRequests.snapshot();
+            if (oneShots.length > 0) {
+                for (OneShotRequest request : oneShots) {
+                    if (this.oneShotRequests.remove(request) != null) {
+                        request.complete(this.materializedLocations[materialize(snapshot, request.provider)]);
                     }
                 }
+                LocalBroadcastReceiver.refresh();
             }
+            clearMaterialized();
+            NmeaUpdater.getInstance().update(snapshot);
+            BatchUpdater.getInstance().update(snapshot);
+        }
+    }
+
+    private int materialize(LocationSnapshot snapshot, String provider) {
+        for (int i = 0; i < this.materializedCount; i++) {
+            if (Objects.equals(this.materializedProviders[i], provider)) {
+                return i;
+            }
+        }
+        int i = this.materializedCount < this.materializedProviders.length ? this.materializedCount++ : this.materializedProviders.length - 1;
+        this.materializedProviders[i] = provider;
+        this.materializedLocations[i] = getTemplate(snapshot, provider);
+        this.materializedIntents[i] = null;
+        return i;
+    }
+
+    private void clearMaterialized() {
+        for (int i = 0; i < this.materializedCount; i++) {
+            this.materializedProviders[i] = null;
+            this.materializedLocations[i] = null;
+            this.materializedIntents[i] = null;
         }
+        this.materializedCount = 0;
     }
 
     public Location getAsLocation(String provider) {
-        if (this.timestamp <= 0L) {
+        Location template = getTemplate(this.snapshot, provider);
+        if (template == null) {
+            return null;
+        }
+        Location location = new Location(template);
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        return location;
+    }
+
+    private Location getTemplate(LocationSnapshot snapshot, String provider) {
+        if (snapshot == null || snapshot.getTimestamp() <= 0L) {
             return null;
         }
+        int satelliteCount = this.satelliteCount;
+        LocationTemplates templates = this.templates;
+        if (templates.snapshot == snapshot && templates.satelliteCount == satelliteCount) {
+            Location template = templates.get(provider);
+            if (template != null) {
+                return template;
+            }
+        } else {
+            templates = new LocationTemplates(snapshot, satelliteCount, new String[0], new Location[0]);
+        }
+        // Racing callers may each build a template, any of them will do
+        Location template = buildLocation(snapshot, provider, satelliteCount);
+        this.templates = templates.with(provider, template);
+        return template;
+    }
+
+    Location buildLocation(LocationSnapshot snapshot, String provider, int satelliteCount) {
         Location location = new Location(provider);
-        location.setLatitude(this.latitude);
-        location.setLongitude(this.longitude);
-        location.setAltitude(this.altitude);
-        location.setSpeed(this.speed);
-        location.setBearing(this.bearing);
-        location.setAccuracy(this.accuracy);
-        location.setTime(this.timestamp);
+        location.setLatitude(snapshot.getLatitude());
+        location.setLongitude(snapshot.getLongitude());
+        location.setAltitude(snapshot.getAltitude());
+        location.setSpeed(snapshot.getSpeed());
+        location.setBearing(snapshot.getBearing());
+        location.setAccuracy(snapshot.getAccuracy());
+        location.setTime(snapshot.getTimestamp());
         location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-        if (this.satelliteCount > 0) {
-            Bundle extras = new Bundle();
-            extras.putInt("satellites", this.satelliteCount);
+        if (satelliteCount > 0) {
+            Bundle extras = this.satelliteExtras;
+            if (extras == null || extras.getInt("satellites") != satelliteCount) {
+                extras = new Bundle();
+                extras.putInt("satellites", satelliteCount);
+                this.satelliteExtras = extras;
+            }
+            // Copied by setExtras
             location.setExtras(extras);
         }
         return location;
     }
 
-    public void addLocationListener(String provider, LocationListener listener, Handler handler, Executor executor) {
+    /**
+     * Delivers the current fix once, or if there is none yet, the next one to arrive within {@link #ONE_SHOT_TIMEOUT}.
+     * All requests waiting for the same update share one materialized location.
+     *
+     * @param owner         listener or PendingIntent whose removal cancels the request, or null
+     * @param nullOnTimeout whether the callback gets null when no fix arrives in time, as getCurrentLocation requires
+     */
+    public void requestSingleLocation(String provider, Object owner, Consumer<Location> callback, Handler handler, Executor executor,
+                                      CancellationSignal cancellationSignal, boolean nullOnTimeout) {
+        Location current = getAsLocation(provider);
+        if (current != null) {
+            Hooks.executeCallback(() -> callback.accept(current), handler, executor);
+            return;
+        }
+        OneShotRequest request = new OneShotRequest(provider, owner, callback, handler, executor);
+        request.timeout = getOneShotTimer().schedule(() -> {
+            if (this.oneShotRequests.remove(request) != null) {
+                if (nullOnTimeout) {
+                    Hooks.executeCallback(() -> callback.accept(null), handler, executor);
+                }
+                LocalBroadcastReceiver.refresh();
+            }
+        }, ONE_SHOT_TIMEOUT, TimeUnit.MILLISECONDS);
+        this.oneShotRequests.put(request, request);
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(() -> {
+                if (this.oneShotRequests.remove(request) != null) {
+                    request.timeout.cancel(false);
+                    LocalBroadcastReceiver.refresh();
+                }
+            });
+        }
+        // A fix published before the request was registered would have missed it
+        Location published = getAsLocation(provider);
+        if (published != null && this.oneShotRequests.remove(request) != null) {
+            request.complete(published);
+        } else {
+            LocalBroadcastReceiver.refresh();
+        }
+    }
+
+    private synchronized ScheduledThreadPoolExecutor getOneShotTimer() {
+        if (this.oneShotTimer == null) {
+            this.oneShotTimer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "OpenRealGPS-OneShot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.oneShotTimer.setKeepAliveTime(ONE_SHOT_TIMEOUT, TimeUnit.MILLISECONDS);
+            this.oneShotTimer.allowCoreThreadTimeOut(true);
+            this.oneShotTimer.setRemoveOnCancelPolicy(true);
+        }
+        return this.oneShotTimer;
+    }
+
+    public void addLocationListener(String provider, LocationListener listener, Handler handler, Executor executor, long minTime, float minDistance) {
         Hooks.executeCallback(() -> listener.onProviderEnabled(provider), handler, executor);
-        synchronized (this.locationListenerWrappers) {
-            this.locationListenerWrappers.add(new LocationListenerWrapper(provider, listener, handler, executor));
+        LatestValueSlot<Location> slot = null;
+        if (ModuleConfig.getInstance().isCoalescing()) {
+            slot = new LatestValueSlot<>(location -> listener.onLocationChanged(new Location(location)), handler, executor,
+                    PipelineStats.getInstance().getLocationCallbacks());
         }
+        this.locationListenerWrappers.put(listener, new LocationListenerWrapper(provider, listener, handler, executor, slot, Throttle.of(minTime, minDistance)));
+        LocalBroadcastReceiver.refresh();
     }
 
     public void removeLocationListener(LocationListener listener) {
-        synchronized (this.locationListenerWrappers) {
-            for (Iterator<LocationListenerWrapper> itr = this.locationListenerWrappers.iterator(); itr.hasNext(); ) {
-                LocationListenerWrapper wrapper = itr.next();
-                if (Objects.equals(wrapper.listener, listener)) {
-                    itr.remove();
-                    break;
-                }
+        this.locationListenerWrappers.remove(listener);
+        cancelOneShots(listener);
+        LocalBroadcastReceiver.refresh();
+    }
+
+    // Like the platform, removing a listener or PendingIntent also drops its pending single updates
+    private void cancelOneShots(Object owner) {
+        for (OneShotRequest request : this.oneShotRequests.snapshot()) {
+            if (request.owner == owner && this.oneShotRequests.remove(request) != null) {
+                request.timeout.cancel(false);
             }
         }
     }
 
-    public void addPendingIntent(String provider, PendingIntent pendingIntent, Context context) {
+    public void addPendingIntent(String provider, PendingIntent pendingIntent, Context context, long minTime, float minDistance) {
         try {
             pendingIntent.send(context, 0, new Intent().putExtra(LocationManager.KEY_PROVIDER_ENABLED, true));
         } catch (Exception e) {
             return;
         }
 
-        synchronized (this.pendingIntentWrappers) {
-            this.pendingIntentWrappers.add(new PendingIntentWrapper(provider, pendingIntent, context));
-        }
+        this.pendingIntentWrappers.put(pendingIntent, new PendingIntentWrapper(provider, pendingIntent, context, Throttle.of(minTime, minDistance)));
+        LocalBroadcastReceiver.refresh();
     }
 
     public void removePendingIntent(PendingIntent pendingIntent) {
-        synchronized (this.pendingIntentWrappers) {
-            for (Iterator<PendingIntentWrapper> itr = this.pendingIntentWrappers.iterator(); itr.hasNext(); ) {
-                PendingIntentWrapper wrapper = itr.next();
-                if (Objects.equals(wrapper.pendingIntent, pendingIntent)) {
-                    itr.remove();
-                    break;
-                }
-            }
-        }
+        this.pendingIntentWrappers.remove(pendingIntent);
+        cancelOneShots(pendingIntent);
+        LocalBroadcastReceiver.refresh();
     }
 
     @AllArgsConstructor
@@ -153,6 +322,10 @@ public class LocationUpdater {
         private final Handler handler;
 
         private final Executor executor;
+
+        private final LatestValueSlot<Location> slot;
+
+        private final Throttle throttle;
     }
 
     @AllArgsConstructor
@@ -162,5 +335,99 @@ public class LocationUpdater {
         private final PendingIntent pendingIntent;
 
         private final Context context;
+
+        private final Throttle throttle;
+    }
+
+    @AllArgsConstructor
+    private static class LocationTemplates {
+        private static final LocationTemplates EMPTY = new LocationTemplates(null, 0, new String[0], new Location[0]);
+        private static final int MAX_PROVIDERS = 4;
+
+        private final LocationSnapshot snapshot;
+        private final int satelliteCount;
+        private final String[] providers;
+        private final Location[] locations;
+
+        private Location get(String provider) {
+            for (int i = 0; i < this.providers.length; i++) {
+                if (Objects.equals(this.providers[i], provider)) {
+                    return this.locations[i];
+                }
+            }
+            return null;
+        }
+
+        private LocationTemplates with(String provider, Location location) {
+            int n = Math.min(this.providers.length + 1, MAX_PROVIDERS);
+            String[] providers = Arrays.copyOf(this.providers, n);
+            Location[] locations = Arrays.copyOf(this.locations, n);
+            providers[n - 1] = provider;
+            locations[n - 1] = location;
+            return new LocationTemplates(this.snapshot, this.satelliteCount, providers, locations);
+        }
+    }
+
+    private static class OneShotRequest {
+        private final String provider;
+        private final Object owner;
+        private final Consumer<Location> callback;
+        private final Handler handler;
+        private final Executor executor;
+        private volatile ScheduledFuture<?> timeout;
+
+        private OneShotRequest(String provider, Object owner, Consumer<Location> callback, Handler handler, Executor executor) {
+            this.provider = provider;
+            this.owner = owner;
+            this.callback = callback;
+            this.handler = handler;
+            this.executor = executor;
+        }
+
+        private void complete(Location location) {
+            this.timeout.cancel(false);
+            Hooks.executeCallback(() -> this.callback.accept(new Location(location)), this.handler, this.executor);
+        }
+    }
+
+    private static class Throttle {
+        private static final double EARTH_RADIUS = 6371000.0;
+
+        private final long minTime;
+        private final double minDistanceSquared;
+        // Last delivered fix, only touched by the updating thread
+        private long lastTime = Long.MIN_VALUE;
+        private double lastLatitude, lastLongitude, lastCosLatitude;
+
+        private Throttle(long minTime, float minDistance) {
+            // Same tolerance as the platform, so a feed at exactly the requested interval is not halved by jitter
+            this.minTime = minTime - minTime / 10;
+            this.minDistanceSquared = (double) minDistance * minDistance;
+        }
+
+        private static Throttle of(long minTime, float minDistance) {
+            return minTime > 0 || minDistance > 0 ? new Throttle(minTime, minDistance) : null;
+        }
+
+        private boolean accept(LocationSnapshot snapshot, long now) {
+            if (this.lastTime != Long.MIN_VALUE) {
+                if (now - this.lastTime < this.minTime) {
+                    return false;
+                }
+                if (this.minDistanceSquared > 0) {
+                    // Equirectangular approximation, accurate enough at the distances apps filter on
+                    double dy = Math.toRadians(snapshot.getLatitude() - this.lastLatitude);
+                    double dx = Math.toRadians(snapshot.getLongitude() - this.lastLongitude) * this.lastCosLatitude;
+                    if ((dx * dx + dy * dy) * EARTH_RADIUS * EARTH_RADIUS < this.minDistanceSquared) {
+                        return false;
+                    }
+                }
+            }
+            this.lastTime = now;
+            this.lastLatitude = snapshot.getLatitude();
+            this.lastLongitude = snapshot.getLongitude();
+            this.lastCosLatitude = Math.cos(Math.toRadians(this.lastLatitude));
+            return true;
+        }
     }
 }
@@ -0,0 +1,104 @@
+package com.github.openrealgps.lite;
+
+import de.robv.android.xposed.XposedHelpers;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Module options, read once per process from system properties, e.g. {@code adb shell setprop debug.openrealgps.coalesce 1}.
+ */
+@Getter
+public final class ModuleConfig {
+    public static final String PROPERTY_PREFIX = "debug.openrealgps.";
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static volatile ModuleConfig instance;
+
+    public static ModuleConfig getInstance() {
+        if (instance == null) {
+            synchronized (ModuleConfig.class) {
+                if (instance == null) {
+                    instance = new ModuleConfig();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final boolean coalescing;
+    private final String ringPath;
+    private final Set<String> includedPackages;
+    private final Set<String> excludedPackages;
+    private final int batchSize;
+
+    private ModuleConfig() {
+        this.coalescing = getBoolean("coalesce", false);
+        this.ringPath = get("ring", "");
+        this.includedPackages = getSet("include");
+        this.excludedPackages = getSet("exclude");
+        this.batchSize = Math.max(getInt("batch", DEFAULT_BATCH_SIZE), 0);
+    }
+
+    /**
+     * @return false if the package is excluded, or if an include list is set and does not name it
+     */
+    public boolean isTargetPackage(String packageName) {
+        if (this.excludedPackages.contains(packageName)) {
+            return false;
+        }
+        return this.includedPackages.isEmpty() || this.includedPackages.contains(packageName);
+    }
+
+    private static String get(String name, String def) {
+        try {
+            Class<?> systemProperties = XposedHelpers.findClass("android.os.SystemProperties", null);
+            return (String) XposedHelpers.callStaticMethod(systemProperties, "get", PROPERTY_PREFIX + name, def);
+        } catch (Throwable e) {
+            return def;
+        }
+    }
+
+    /**
+     * Reads a comma-separated list from {@code name}, continued in {@code name.0}, {@code name.1} and so on up to the
+     * first unset index, since a single property value is limited to 91 characters.
+     */
+    private static Set<String> getSet(String name) {
+        Set<String> set = new HashSet<>();
+        addItems(set, get(name, ""));
+        for (int i = 0; ; i++) {
+            String value = get(name + "." + i, "");
+            if (value.isEmpty()) {
+                break;
+            }
+            addItems(set, value);
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    private static void addItems(Set<String> set, String value) {
+        for (String item : value.split(",")) {
+            if (!item.trim().isEmpty()) {
+                set.add(item.trim());
+            }
+        }
+    }
+
+    private static int getInt(String name, int def) {
+        try {
+            return Integer.parseInt(get(name, "").trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    private static boolean getBoolean(String name, boolean def) {
+        String value = get(name, "");
+        if (value.isEmpty()) {
+            return def;
+        }
+        return "1".equals(value) || "true".equalsIgnoreCase(value);
+    }
+}
@@ -0,0 +1,238 @@
+package com.github.openrealgps.lite;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Produces fixes at a fixed rate from sparse timestamped waypoints, so producers do not have to push every fix.
+ * Between waypoints the path is a cubic Hermite spline with Catmull-Rom tangents, and speed and bearing are taken
+ * from its derivative. After the last waypoint the fix is dead-reckoned from its speed and bearing for a while, then
+ * the model stops. It only runs while locations are subscribed.
+ */
+@Slf4j
+public class MotionModel implements Runnable {
+    public static final int MAX_WAYPOINTS = 64;
+    public static final float MAX_RATE = 50;
+    public static final long MAX_EXTRAPOLATION = 5000;
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    private final LocationUpdater updater;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+    private long period;
+    private volatile Track track;
+
+    // Back buffer filled by the receiver thread, published to the scheduler as an immutable track
+    private final double[] latitude = new double[MAX_WAYPOINTS];
+    private final double[] longitude = new double[MAX_WAYPOINTS];
+    private final double[] altitude = new double[MAX_WAYPOINTS];
+    private final long[] timestamp = new long[MAX_WAYPOINTS];
+    private final float[] speed = new float[MAX_WAYPOINTS];
+    private final float[] bearing = new float[MAX_WAYPOINTS];
+    private final float[] accuracy = new float[MAX_WAYPOINTS];
+
+    public MotionModel(LocationUpdater updater) {
+        this.updater = updater;
+    }
+
+    public void putWaypoint(int index, double latitude, double longitude, double altitude, long timestamp, float speed, float bearing, float accuracy) {
+        this.latitude[index] = latitude;
+        this.longitude[index] = longitude;
+        this.altitude[index] = altitude;
+        this.timestamp[index] = timestamp;
+        this.speed[index] = speed;
+        this.bearing[index] = bearing;
+        this.accuracy[index] = accuracy;
+    }
+
+    public synchronized void start(int count, float rate) {
+        if (count <= 0) {
+            stop();
+            return;
+        }
+        this.track = new Track(count, this);
+        // NaN falls back to the slowest rate
+        this.period = (long) (1000000 / (rate >= 1 ? Math.min(rate, MAX_RATE) : 1));
+        cancel();
+        if (this.updater.hasSubscribers()) {
+            schedule();
+        }
+    }
+
+    public synchronized void stop() {
+        cancel();
+        this.track = null;
+    }
+
+    /**
+     * Pauses the model while nothing is subscribed and resumes it once something is. Called after every registration
+     * change.
+     */
+    public synchronized void refresh() {
+        if (this.track == null) {
+            return;
+        }
+        boolean subscribed = this.updater.hasSubscribers();
+        if (subscribed && this.task == null) {
+            schedule();
+        } else if (!subscribed) {
+            cancel();
+        }
+    }
+
+    private void schedule() {
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "OpenRealGPS-MotionModel");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.task = this.scheduler.scheduleAtFixedRate(this, 0, this.period, TimeUnit.MICROSECONDS);
+    }
+
+    private void cancel() {
+        if (this.task != null) {
+            this.task.cancel(false);
+            this.task = null;
+        }
+    }
+
+    private synchronized void finish(Track track) {
+        if (this.track == track) {
+            stop();
+        }
+    }
+
+    public boolean isRunning() {
+        return this.track != null;
+    }
+
+    @Override
+    public void run() {
+        Track track = this.track;
+        if (track == null) {
+            return;
+        }
+        if (!this.updater.hasSubscribers()) {
+            refresh();
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            track.evaluate(now, this.updater);
+        } catch (Exception e) {
+            log.warn("Failed to evaluate motion: {}", String.valueOf(e));
+        }
+        if (now - track.timestamp[track.count - 1] >= MAX_EXTRAPOLATION) {
+            // The last fix stays current for later requests
+            finish(track);
+        }
+    }
+
+    private static class Track {
+        private final int count;
+        private final double[] latitude, longitude, altitude;
+        private final long[] timestamp;
+        private final float[] speed, bearing, accuracy;
+
+        private Track(int count, MotionModel source) {
+            this.count = count;
+            this.latitude = Arrays.copyOf(source.latitude, count);
+            this.longitude = Arrays.copyOf(source.longitude, count);
+            this.altitude = Arrays.copyOf(source.altitude, count);
+            this.timestamp = Arrays.copyOf(source.timestamp, count);
+            this.speed = Arrays.copyOf(source.speed, count);
+            this.bearing = Arrays.copyOf(source.bearing, count);
+            this.accuracy = Arrays.copyOf(source.accuracy, count);
+            for (int i = 1; i < count; i++) {
+                if (this.timestamp[i] <= this.timestamp[i - 1]) {
+                    throw new IllegalArgumentException("Waypoint timestamps must be strictly increasing");
+                }
+            }
+        }
+
+        private void evaluate(long now, LocationUpdater updater) {
+            int last = this.count - 1;
+            if (now >= this.timestamp[last]) {
+                publishWaypoint(last, now, Math.min(now - this.timestamp[last], MAX_EXTRAPOLATION), updater);
+            } else if (now <= this.timestamp[0]) {
+                publishWaypoint(0, now, 0, updater);
+            } else {
+                int i = 0;
+                while (this.timestamp[i + 1] <= now) {
+                    i++;
+                }
+                publishSpline(i, now, updater);
+            }
+        }
+
+        private void publishWaypoint(int i, long now, long elapsed, LocationUpdater updater) {
+            float speed = this.speed[i];
+            float bearing = this.bearing[i];
+            if (Float.isNaN(speed) || Float.isNaN(bearing)) {
+                if (this.count == 1) {
+                    speed = Float.isNaN(speed) ? 0 : speed;
+                    bearing = Float.isNaN(bearing) ? 0 : bearing;
+                } else {
+                    // Keep moving along the first or last segment
+                    int a = i == 0 ? 0 : i - 1;
+                    double dt = (this.timestamp[a + 1] - this.timestamp[a]) / 1000.0;
+                    double north = Math.toRadians(this.latitude[a + 1] - this.latitude[a]) * EARTH_RADIUS;
+                    double east = Math.toRadians(this.longitude[a + 1] - this.longitude[a]) * EARTH_RADIUS * Math.cos(Math.toRadians(this.latitude[i]));
+                    speed = Float.isNaN(speed) ? (float) (Math.hypot(north, east) / dt) : speed;
+                    bearing = Float.isNaN(bearing) ? toBearing(north, east) : bearing;
+                }
+            }
+
+            double distance = speed * elapsed / 1000.0;
+            double b = Math.toRadians(bearing);
+            double latitude = this.latitude[i] + Math.toDegrees(distance * Math.cos(b) / EARTH_RADIUS);
+            double longitude = this.longitude[i] + Math.toDegrees(distance * Math.sin(b) / (EARTH_RADIUS * Math.cos(Math.toRadians(this.latitude[i]))));
+            updater.publish(latitude, longitude, this.altitude[i], speed, bearing, this.accuracy[i], now);
+        }
+
+        private void publishSpline(int i, long now, LocationUpdater updater) {
+            double t0 = this.timestamp[i];
+            double t1 = this.timestamp[i + 1];
+            double h = (t1 - t0) / 1000.0;
+            double s = (now - t0) / (t1 - t0);
+            double s2 = s * s;
+            double s3 = s2 * s;
+            // Hermite basis and derivatives
+            double h00 = 2 * s3 - 3 * s2 + 1, h10 = s3 - 2 * s2 + s, h01 = -2 * s3 + 3 * s2, h11 = s3 - s2;
+            double d00 = 6 * s2 - 6 * s, d10 = 3 * s2 - 4 * s + 1, d01 = -6 * s2 + 6 * s, d11 = 3 * s2 - 2 * s;
+
+            double m0Lat = tangent(this.latitude, i), m1Lat = tangent(this.latitude, i + 1);
+            double m0Lon = tangent(this.longitude, i), m1Lon = tangent(this.longitude, i + 1);
+            double latitude = h00 * this.latitude[i] + h10 * h * m0Lat + h01 * this.latitude[i + 1] + h11 * h * m1Lat;
+            double longitude = h00 * this.longitude[i] + h10 * h * m0Lon + h01 * this.longitude[i + 1] + h11 * h * m1Lon;
+            double altitude = this.altitude[i] + s * (this.altitude[i + 1] - this.altitude[i]);
+            float accuracy = (float) (this.accuracy[i] + s * (this.accuracy[i + 1] - this.accuracy[i]));
+
+            // Degrees per second along the spline
+            double dLat = (d00 * this.latitude[i] + d10 * h * m0Lat + d01 * this.latitude[i + 1] + d11 * h * m1Lat) / h;
+            double dLon = (d00 * this.longitude[i] + d10 * h * m0Lon + d01 * this.longitude[i + 1] + d11 * h * m1Lon) / h;
+            double north = Math.toRadians(dLat) * EARTH_RADIUS;
+            double east = Math.toRadians(dLon) * EARTH_RADIUS * Math.cos(Math.toRadians(latitude));
+            updater.publish(latitude, longitude, altitude, (float) Math.hypot(north, east), toBearing(north, east), accuracy, now);
+        }
+
+        // Catmull-Rom tangent for non-uniform time steps, in degrees per second
+        private double tangent(double[] values, int i) {
+            int a = Math.max(i - 1, 0);
+            int b = Math.min(i + 1, this.count - 1);
+            return (values[b] - values[a]) / ((this.timestamp[b] - this.timestamp[a]) / 1000.0);
+        }
+
+        private static float toBearing(double north, double east) {
+            double bearing = Math.toDegrees(Math.atan2(east, north));
+            return (float) (bearing < 0 ? bearing + 360 : bearing);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.openrealgps.lite;
+
+/**
+ * Formats GGA/RMC/GSA/GSV sentences from snapshots. Digits and checksums are written into one reusable char buffer,
+ * so the only garbage per sentence is the resulting String. Not thread-safe.
+ */
+public class NmeaGenerator {
+    // GPS, GLONASS, Galileo, BeiDou, QZSS, same PRN ranges as SatelliteUpdater
+    private static final String[] GSV_TALKERS = {"GP", "GL", "GA", "GB", "GQ"};
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final double MS_TO_KNOTS = 1.943844;
+    private static final int MAX_SENTENCES = 3 + SatelliteUpdater.MAX_SVS / 4 + GSV_TALKERS.length;
+
+    private final char[] buf = new char[128];
+    private int len;
+    private final int[] group = new int[SatelliteUpdater.MAX_SVS];
+
+    public String[] generate(LocationSnapshot location, SatelliteSnapshot satellites) {
+        String[] sentences = new String[MAX_SENTENCES];
+        int count = 0;
+        long time = location.getTimestamp();
+        double hdop = Math.max(0.5, location.getAccuracy() / 5.0);
+
+        begin("GPGGA");
+        appendTime(time);
+        appendLatLon(location.getLatitude(), location.getLongitude());
+        append(',').append('1').append(',');
+        appendInt(Math.min(satellites.getSvCount(), 99), 2);
+        append(',');
+        appendFixed(hdop, 1);
+        append(',');
+        appendFixed(location.getAltitude(), 1);
+        append(",M,0.0,M,,");
+        sentences[count++] = end();
+
+        begin("GPRMC");
+        appendTime(time);
+        append(",A");
+        appendLatLon(location.getLatitude(), location.getLongitude());
+        append(',');
+        appendFixed(location.getSpeed() * MS_TO_KNOTS, 2);
+        append(',');
+        appendFixed(location.getBearing(), 1);
+        append(',');
+        appendDate(time);
+        append(",,,A");
+        sentences[count++] = end();
+
+        begin("GPGSA");
+        append(",A,3");
+        int used = 0;
+        for (int i = 0; i < satellites.getSvCount() && used < 12; i++) {
+            if (talkerOf(satellites.getPrn()[i]) == 0) {
+                append(',');
+                appendInt(satellites.getPrn()[i], 2);
+                used++;
+            }
+        }
+        for (; used < 12; used++) {
+            append(',');
+        }
+        append(',');
+        appendFixed(hdop * 1.8, 1);
+        append(',');
+        appendFixed(hdop, 1);
+        append(',');
+        appendFixed(hdop * 1.5, 1);
+        sentences[count++] = end();
+
+        for (int talker = 0; talker < GSV_TALKERS.length; talker++) {
+            int inView = 0;
+            for (int i = 0; i < satellites.getSvCount(); i++) {
+                if (talkerOf(satellites.getPrn()[i]) == talker) {
+                    this.group[inView++] = i;
+                }
+            }
+            int total = (inView + 3) / 4;
+            for (int n = 0; n < total; n++) {
+                begin(GSV_TALKERS[talker]);
+                append("GSV,");
+                appendInt(total, 1);
+                append(',');
+                appendInt(n + 1, 1);
+                append(',');
+                appendInt(inView, 2);
+                for (int k = n * 4; k < Math.min(inView, n * 4 + 4); k++) {
+                    int i = this.group[k];
+                    append(',');
+                    appendInt(nmeaId(satellites.getPrn()[i]), 2);
+                    append(',');
+                    appendInt(Math.round(satellites.getElv()[i]), 2);
+                    append(',');
+                    appendInt(Math.floorMod(Math.round(satellites.getAzm()[i]), 360), 3);
+                    append(',');
+                    appendInt(Math.round(satellites.getSnr()[i]), 2);
+                }
+                sentences[count++] = end();
+            }
+        }
+
+        if (count < sentences.length) {
+            sentences[count] = null;
+        }
+        return sentences;
+    }
+
+    private static int talkerOf(int prn) {
+        if (prn >= 65 && prn <= 96) {
+            return 1;
+        } else if (prn >= 301 && prn <= 336) {
+            return 2;
+        } else if (prn >= 201 && prn <= 235) {
+            return 3;
+        } else if (prn >= 193 && prn <= 200) {
+            return 4;
+        }
+        return 0;
+    }
+
+    private static int nmeaId(int prn) {
+        if (prn >= 301 && prn <= 336) {
+            return prn - 300;
+        } else if (prn >= 201 && prn <= 235) {
+            return prn - 200;
+        }
+        return prn;
+    }
+
+    private void begin(String talkerAndType) {
+        this.len = 0;
+        append('$').append(talkerAndType);
+    }
+
+    private String end() {
+        int checksum = 0;
+        for (int i = 1; i < this.len; i++) {
+            checksum ^= this.buf[i];
+        }
+        append('*').append(HEX[(checksum >> 4) & 0xF]).append(HEX[checksum & 0xF]);
+        return new String(this.buf, 0, this.len);
+    }
+
+    private NmeaGenerator append(char c) {
+        this.buf[this.len++] = c;
+        return this;
+    }
+
+    private NmeaGenerator append(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            this.buf[this.len++] = s.charAt(i);
+        }
+        return this;
+    }
+
+    private void appendInt(long value, int minDigits) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int start = this.len;
+        do {
+            this.buf[this.len++] = (char) ('0' + value % 10);
+            value /= 10;
+            minDigits--;
+        } while (value > 0 || minDigits > 0);
+        for (int i = start, j = this.len - 1; i < j; i++, j--) {
+            char c = this.buf[i];
+            this.buf[i] = this.buf[j];
+            this.buf[j] = c;
+        }
+    }
+
+    private void appendFixed(double value, int decimals) {
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        appendInt(scaled / scale, 1);
+        append('.');
+        appendInt(scaled % scale, decimals);
+    }
+
+    private void appendTime(long time) {
+        long ms = Math.floorMod(time, 86400000L);
+        append(',');
+        appendInt(ms / 3600000, 2);
+        appendInt(ms / 60000 % 60, 2);
+        appendInt(ms / 1000 % 60, 2);
+        append('.');
+        appendInt(ms % 1000 / 10, 2);
+    }
+
+    private void appendDate(long time) {
+        // Days since epoch to civil date, see http://howardhinnant.github.io/date_algorithms.html
+        long z = Math.floorDiv(time, 86400000L) + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        appendInt(day, 2);
+        appendInt(month, 2);
+        appendInt(year % 100, 2);
+    }
+
+    private void appendLatLon(double latitude, double longitude) {
+        append(',');
+        appendDegrees(Math.abs(latitude), 2);
+        append(',').append(latitude >= 0 ? 'N' : 'S');
+        append(',');
+        appendDegrees(Math.abs(longitude), 3);
+        append(',').append(longitude >= 0 ? 'E' : 'W');
+    }
+
+    private void appendDegrees(double degrees, int degreeDigits) {
+        long scaledMinutes = Math.round(degrees * 60 * 100000);
+        appendInt(scaledMinutes / 6000000, degreeDigits);
+        appendInt(scaledMinutes % 6000000 / 100000, 2);
+        append('.');
+        appendInt(scaledMinutes % 100000, 5);
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.openrealgps.lite;
+
+import android.location.GpsStatus;
+import android.location.OnNmeaMessageListener;
+import android.os.Handler;
+import android.os.SystemClock;
+import lombok.AllArgsConstructor;
+
+import java.util.concurrent.Executor;
+
+public class NmeaUpdater {
+    private static volatile NmeaUpdater instance;
+
+    public static NmeaUpdater getInstance() {
+        if (instance == null) {
+            synchronized (NmeaUpdater.class) {
+                if (instance == null) {
+                    instance = new NmeaUpdater();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final ListenerRegistry<Object, NmeaListenerWrapper> nmeaListeners = new ListenerRegistry<>(new NmeaListenerWrapper[0], true);
+    private final NmeaGenerator generator = new NmeaGenerator();
+
+    private NmeaUpdater() {
+    }
+
+    public boolean hasListeners() {
+        return !this.nmeaListeners.isEmpty();
+    }
+
+    public int getListenerCount() {
+        return this.nmeaListeners.size();
+    }
+
+    public void update(LocationSnapshot location) {
+        NmeaListenerWrapper[] wrappers = this.nmeaListeners.snapshot();
+        if (wrappers.length > 0) {
+            String[] sentences = this.generator.generate(location, SatelliteUpdater.getInstance().getSnapshot());
+            long timestamp = location.getTimestamp();
+            PipelineStats stats = PipelineStats.getInstance();
+            long sendTime = stats.currentSendTime();
+            long posted = SystemClock.elapsedRealtimeNanos();
+            for (NmeaListenerWrapper wrapper : wrappers) {
+                Hooks.executeCallback(() -> {
+                    stats.recordDispatch(stats.getNmeaCallbacks(), posted, sendTime);
+                    for (String sentence : sentences) {
+                        if (sentence == null) {
+                            break;
+                        }
+                        wrapper.listener.onNmeaMessage(sentence, timestamp);
+                    }
+                }, wrapper.handler, wrapper.executor);
+            }
+        }
+    }
+
+    public void addNmeaListener(OnNmeaMessageListener listener, Handler handler, Executor executor) {
+        this.nmeaListeners.put(listener, new NmeaListenerWrapper(listener, handler, executor));
+        LocalBroadcastReceiver.refresh();
+    }
+
+    @SuppressWarnings("deprecation")
+    public void addNmeaListener(GpsStatus.NmeaListener listener, Handler handler) {
+        this.nmeaListeners.put(listener, new NmeaListenerWrapper((message, timestamp) -> listener.onNmeaReceived(timestamp, message), handler, null));
+        LocalBroadcastReceiver.refresh();
+    }
+
+    public void removeNmeaListener(Object listener) {
+        this.nmeaListeners.remove(listener);
+        LocalBroadcastReceiver.refresh();
+    }
+
+    @AllArgsConstructor
+    private static class NmeaListenerWrapper {
+        private final OnNmeaMessageListener listener;
+
+        private final Handler handler;
+
+        private final Executor executor;
+    }
+}
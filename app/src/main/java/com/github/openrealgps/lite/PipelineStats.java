@@ -0,0 +1,122 @@
+package com.github.openrealgps.lite;
+
+import android.os.Process;
+import android.os.SystemClock;
+import lombok.Getter;
+import lombok.Setter;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-process pipeline counters and latency histograms, reported to {@code getStats} on request. Times are in
+ * microseconds. Recording only touches atomics, so it is safe and cheap on the receiver and callback threads.
+ */
+@Getter
+public final class PipelineStats {
+    private static volatile PipelineStats instance;
+
+    public static PipelineStats getInstance() {
+        if (instance == null) {
+            synchronized (PipelineStats.class) {
+                if (instance == null) {
+                    instance = new PipelineStats();
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Setter
+    private volatile String processName;
+    @Setter
+    private volatile long hookInstallTime;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong packetsParsed = new AtomicLong();
+    private final AtomicLong parseErrors = new AtomicLong();
+    private final AtomicLong locationCallbacks = new AtomicLong();
+    private final AtomicLong pendingIntentsSent = new AtomicLong();
+    private final AtomicLong gpsStatusCallbacks = new AtomicLong();
+    private final AtomicLong gnssStatusCallbacks = new AtomicLong();
+    private final AtomicLong nmeaCallbacks = new AtomicLong();
+    private final AtomicLong batchCallbacks = new AtomicLong();
+
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    // Send time of the packet being decoded, only meaningful on the receiver thread
+    private volatile Thread packetThread;
+    private volatile long packetSendTime;
+
+    private PipelineStats() {
+    }
+
+    public void beginPacket(long sendTime) {
+        this.packetThread = Thread.currentThread();
+        this.packetSendTime = sendTime;
+    }
+
+    public void endPacket(long startNanos, boolean parsed) {
+        this.packetSendTime = 0;
+        this.parseTime.record((System.nanoTime() - startNanos) / 1000);
+        (parsed ? this.packetsParsed : this.parseErrors).incrementAndGet();
+    }
+
+    /**
+     * @return the server send time of the packet that caused the current update, or 0 outside the receiver thread
+     */
+    public long currentSendTime() {
+        return Thread.currentThread() == this.packetThread ? this.packetSendTime : 0;
+    }
+
+    /**
+     * Records the time a callback spent queued on its handler or executor, and since the server sent its packet.
+     *
+     * @param postedNanos {@code SystemClock.elapsedRealtimeNanos()} when the callback was posted
+     * @param sendTime    server send time from {@link #currentSendTime()} at posting, 0 if unknown
+     */
+    public void recordDispatch(AtomicLong counter, long postedNanos, long sendTime) {
+        counter.incrementAndGet();
+        long now = SystemClock.elapsedRealtimeNanos();
+        this.queueTime.record((now - postedNanos) / 1000);
+        if (sendTime > 0) {
+            this.endToEnd.record(now / 1000 - sendTime * 1000);
+        }
+    }
+
+    public JSONObject toJson() throws Exception {
+        return new JSONObject()
+                .put("process", this.processName)
+                .put("pid", Process.myPid())
+                .put("hookInstallTime", this.hookInstallTime)
+                .put("packetsReceived", this.packetsReceived.get())
+                .put("packetsParsed", this.packetsParsed.get())
+                .put("parseErrors", this.parseErrors.get())
+                .put("packetsLost", LocalBroadcastReceiver.getLost())
+                .put("packetsStale", LocalBroadcastReceiver.getStale())
+                .put("packetsExpired", LocalBroadcastReceiver.getExpired())
+                .put("ringOverruns", LocalBroadcastReceiver.getRingOverruns())
+                .put("coalescedQueueDepth", LatestValueSlot.getQueueDepth())
+                .put("coalescedDropped", LatestValueSlot.getDroppedStale())
+                .put("listeners", new JSONObject()
+                        .put("location", LocationUpdater.getInstance().getLocationListenerCount())
+                        .put("pendingIntent", LocationUpdater.getInstance().getPendingIntentCount())
+                        .put("gpsStatus", SatelliteUpdater.getInstance().getGpsStatusListenerCount())
+                        .put("gnssStatus", SatelliteUpdater.getInstance().getGnssStatusCallbackCount())
+                        .put("nmea", NmeaUpdater.getInstance().getListenerCount())
+                        .put("batch", BatchUpdater.getInstance().getCallbackCount()))
+                .put("callbacks", new JSONObject()
+                        .put("location", this.locationCallbacks.get())
+                        .put("pendingIntent", this.pendingIntentsSent.get())
+                        .put("gpsStatus", this.gpsStatusCallbacks.get())
+                        .put("gnssStatus", this.gnssStatusCallbacks.get())
+                        .put("nmea", this.nmeaCallbacks.get())
+                        .put("batch", this.batchCallbacks.get()))
+                .put("batchOverwritten", BatchUpdater.getInstance().getOverwritten())
+                .put("parseTime", this.parseTime.toJson())
+                .put("queueTime", this.queueTime.toJson())
+                .put("endToEnd", this.endToEnd.toJson());
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.openrealgps.lite;
+
+import android.location.Criteria;
+import android.location.GnssStatus;
+import android.location.GpsStatus;
+import android.location.LocationManager;
+import android.location.LocationProvider;
+import android.os.Build;
+import de.robv.android.xposed.XposedBridge;
+import de.robv.android.xposed.XposedHelpers;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hidden framework constructors, methods and constants, resolved once per process instead of on every update.
+ */
+public final class PlatformBindings {
+    private static final int GNSS_STATUS_N = 5;
+    private static final int GNSS_STATUS_O = 6;
+    private static final int GNSS_STATUS_R = 7;
+
+    private static volatile PlatformBindings instance;
+
+    public static PlatformBindings getInstance() {
+        if (instance == null) {
+            synchronized (PlatformBindings.class) {
+                if (instance == null) {
+                    instance = new PlatformBindings();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private final List<String> missing = new ArrayList<>();
+
+    private int gnssStatusArgs;
+    private Constructor<?> gnssStatusConstructor;
+    private int svidShiftWidth;
+    private int constellationTypeShiftWidth;
+    private boolean hasSvidShiftWidths;
+
+    private Constructor<?> gpsStatusConstructor;
+    private Method gpsStatusSetArrays;
+    private Method gpsStatusSetGnssStatus;
+    private Method gpsStatusSetTimeToFirstFix;
+
+    private LocationProvider gpsProvider;
+    private Object gnssCapabilities;
+
+    private PlatformBindings() {
+        bindGnssStatus();
+        bindGpsStatus();
+        bindLocationProvider();
+        bindGnssCapabilities();
+
+        if (this.missing.isEmpty()) {
+            XposedBridge.log("All framework bindings resolved for SDK " + Build.VERSION.SDK_INT);
+        } else {
+            XposedBridge.log("Missing framework bindings for SDK " + Build.VERSION.SDK_INT + ": " + this.missing);
+        }
+    }
+
+    private void bindGnssStatus() {
+        Class<?>[][] signatures = {
+                {int.class, int[].class, float[].class, float[].class, float[].class, float[].class, float[].class},
+                {int.class, int[].class, float[].class, float[].class, float[].class, float[].class},
+                {int.class, int[].class, float[].class, float[].class, float[].class},
+        };
+        for (Class<?>[] signature : signatures) {
+            this.gnssStatusConstructor = XposedHelpers.findConstructorExactIfExists(GnssStatus.class, (Object[]) signature);
+            if (this.gnssStatusConstructor != null) {
+                this.gnssStatusArgs = signature.length;
+                break;
+            }
+        }
+        if (this.gnssStatusConstructor == null) {
+            this.missing.add("GnssStatus.<init>");
+        }
+
+        try {
+            this.svidShiftWidth = XposedHelpers.getStaticIntField(GnssStatus.class, "SVID_SHIFT_WIDTH");
+            this.constellationTypeShiftWidth = XposedHelpers.getStaticIntField(GnssStatus.class, "CONSTELLATION_TYPE_SHIFT_WIDTH");
+            this.hasSvidShiftWidths = true;
+        } catch (Throwable e) {
+            this.missing.add("GnssStatus.SVID_SHIFT_WIDTH");
+        }
+    }
+
+    private void bindGpsStatus() {
+        this.gpsStatusConstructor = XposedHelpers.findConstructorExactIfExists(GpsStatus.class);
+        if (this.gpsStatusConstructor == null) {
+            this.missing.add("GpsStatus.<init>");
+        }
+        this.gpsStatusSetArrays = XposedHelpers.findMethodExactIfExists(GpsStatus.class, "setStatus",
+                int.class, int[].class, float[].class, float[].class, float[].class);
+        if (this.gpsStatusSetArrays != null) {
+            this.gpsStatusSetTimeToFirstFix = XposedHelpers.findMethodExactIfExists(GpsStatus.class, "setTimeToFirstFix", int.class);
+            if (this.gpsStatusSetTimeToFirstFix == null) {
+                this.missing.add("GpsStatus.setTimeToFirstFix");
+            }
+        } else {
+            this.gpsStatusSetGnssStatus = XposedHelpers.findMethodExactIfExists(GpsStatus.class, "setStatus", GnssStatus.class, int.class);
+            if (this.gpsStatusSetGnssStatus == null) {
+                this.missing.add("GpsStatus.setStatus");
+            }
+        }
+    }
+
+    private void bindLocationProvider() {
+        try {
+            Class<?> propClass = XposedHelpers.findClass("com.android.internal.location.ProviderProperties", null);
+            Object props = XposedHelpers.findConstructorExact(propClass, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, boolean.class, int.class, int.class)
+                    .newInstance(false, true, false, false, true, true, true, Criteria.POWER_MEDIUM, Criteria.ACCURACY_FINE);
+            this.gpsProvider = (LocationProvider) XposedHelpers.findConstructorExact(LocationProvider.class, String.class, propClass)
+                    .newInstance(LocationManager.GPS_PROVIDER, props);
+        } catch (Throwable e) {
+            this.missing.add("LocationProvider.<init>");
+        }
+    }
+
+    private void bindGnssCapabilities() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return;
+        }
+        try {
+            this.gnssCapabilities = XposedHelpers.findConstructorExact("android.location.GnssCapabilities", null, long.class).newInstance(0L);
+        } catch (Throwable e) {
+            this.missing.add("GnssCapabilities.<init>");
+        }
+    }
+
+    public boolean hasGnssStatus() {
+        return this.gnssStatusConstructor != null && this.hasSvidShiftWidths;
+    }
+
+    public int getSvidWithFlags(int svid, int constellationType, int flags) {
+        return (svid << this.svidShiftWidth) + (constellationType << this.constellationTypeShiftWidth) + flags;
+    }
+
+    public GnssStatus newGnssStatus(int svCount, int[] svidWithFlags, float[] cn0s, float[] elevations, float[] azimuths, float[] carrierFrequencies) throws Exception {
+        if (!hasGnssStatus()) {
+            throw new IllegalStateException("GnssStatus binding is missing");
+        }
+        switch (this.gnssStatusArgs) {
+            case GNSS_STATUS_R:
+                return (GnssStatus) this.gnssStatusConstructor.newInstance(svCount, svidWithFlags, cn0s, elevations, azimuths, carrierFrequencies, cn0s);
+            case GNSS_STATUS_O:
+                return (GnssStatus) this.gnssStatusConstructor.newInstance(svCount, svidWithFlags, cn0s, elevations, azimuths, carrierFrequencies);
+            default:
+                return (GnssStatus) this.gnssStatusConstructor.newInstance(svCount, svidWithFlags, cn0s, elevations, azimuths);
+        }
+    }
+
+    public GpsStatus newGpsStatus() throws Exception {
+        if (this.gpsStatusConstructor == null) {
+            throw new IllegalStateException("GpsStatus binding is missing");
+        }
+        return (GpsStatus) this.gpsStatusConstructor.newInstance();
+    }
+
+    public void setGpsStatus(GpsStatus status, int svCount, int[] svidWithFlags, float[] cn0s, float[] elevations, float[] azimuths,
+                             float[] carrierFrequencies, int timeToFirstFix) throws Exception {
+        if (this.gpsStatusSetArrays != null && this.gpsStatusSetTimeToFirstFix != null) {
+            this.gpsStatusSetArrays.invoke(status, svCount, svidWithFlags, cn0s, elevations, azimuths);
+            this.gpsStatusSetTimeToFirstFix.invoke(status, timeToFirstFix);
+        } else if (this.gpsStatusSetGnssStatus != null) {
+            this.gpsStatusSetGnssStatus.invoke(status, newGnssStatus(svCount, svidWithFlags, cn0s, elevations, azimuths, carrierFrequencies), timeToFirstFix);
+        } else {
+            throw new IllegalStateException("GpsStatus binding is missing");
+        }
+    }
+
+    public LocationProvider getGpsProvider() {
+        return this.gpsProvider;
+    }
+
+    public Object getGnssCapabilities() {
+        return this.gnssCapabilities;
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.openrealgps.lite;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Satellites of one update. The arrays are exactly {@code svCount} long and must not be modified once published.
+ */
+@Getter
+public final class SatelliteSnapshot {
+    public static final SatelliteSnapshot EMPTY = new SatelliteSnapshot(0, new int[0], new int[0], new float[0], new float[0], new float[0]);
+
+    private final int svCount;
+
+    private final int[] prn;
+
+    private final int[] svidWithFlags;
+
+    private final float[] snr;
+
+    private final float[] elv;
+
+    private final float[] azm;
+
+    public SatelliteSnapshot(int svCount, int[] prn, int[] svidWithFlags, float[] snr, float[] elv, float[] azm) {
+        this.svCount = svCount;
+        this.prn = Arrays.copyOf(prn, svCount);
+        this.svidWithFlags = Arrays.copyOf(svidWithFlags, svCount);
+        this.snr = Arrays.copyOf(snr, svCount);
+        this.elv = Arrays.copyOf(elv, svCount);
+        this.azm = Arrays.copyOf(azm, svCount);
+    }
+}
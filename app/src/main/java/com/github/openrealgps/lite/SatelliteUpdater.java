@@ -2,18 +2,19 @@ package com.github.openrealgps.lite;
 
 import android.location.GnssStatus;
 import android.location.GpsStatus;
-import android.os.Build;
 import android.os.Handler;
-import android.util.ArraySet;
-import de.robv.android.xposed.XposedHelpers;
+import android.os.SystemClock;
 import lombok.AllArgsConstructor;
-import org.json.JSONArray;
+import lombok.Getter;
+import lombok.Setter;
 
-import java.util.*;
 import java.util.concurrent.Executor;
 
 public class SatelliteUpdater {
     public static final int MAX_SVS = 64;
+    public static final long SKY_INTERVAL = 1000;
+    public static final long ALMANAC_EXPIRY = 3 * LocalServer.ALMANAC_INTERVAL;
+    private static final float[] FREQ = new float[MAX_SVS];
     private static volatile SatelliteUpdater instance;
 
     public static SatelliteUpdater getInstance() {
@@ -27,45 +28,118 @@ public class SatelliteUpdater {
         return instance;
     }
 
-    private final Set<GpsStatus.Listener> gpsStatusListeners = new ArraySet<>();
-    private final List<GnssStatusCallbackWrapper> gnssStatusCallbacks = new LinkedList<>();
-    private int svCount;
+    private final ListenerRegistry<GpsStatus.Listener, GpsStatusListenerWrapper> gpsStatusListeners = new ListenerRegistry<>(new GpsStatusListenerWrapper[0], true);
+    private final ListenerRegistry<GnssStatus.Callback, GnssStatusCallbackWrapper> gnssStatusCallbacks = new ListenerRegistry<>(new GnssStatusCallbackWrapper[0], true);
+
+    // Back buffer filled by the receiver thread, published to readers as an immutable snapshot
     private final int[] prn = new int[MAX_SVS];
+    private final int[] svidWithFlags = new int[MAX_SVS];
     private final float[] snr = new float[MAX_SVS];
     private final float[] elv = new float[MAX_SVS];
     private final float[] azm = new float[MAX_SVS];
-    private final float[] freq = new float[MAX_SVS];
+    @Getter
+    private volatile SatelliteSnapshot snapshot = SatelliteSnapshot.EMPTY;
+
+    // Handler for status listeners when the sky is updated outside the receiver
+    @Setter
+    private volatile Handler defaultHandler;
+    private volatile Almanac almanac;
+    private volatile long almanacReceived;
+    // Guarded by the LocationUpdater publish lock
+    private Almanac skyAlmanac;
+    private long lastSky;
+
+    /**
+     * @return the almanac, or null if it has not been rebroadcast within {@link #ALMANAC_EXPIRY}, so a missed clear or
+     * a stopped server does not keep overriding pushed satellites
+     */
+    public Almanac getAlmanac() {
+        Almanac almanac = this.almanac;
+        return almanac != null && SystemClock.elapsedRealtime() - this.almanacReceived <= ALMANAC_EXPIRY ? almanac : null;
+    }
 
-    public void update(JSONArray data, Handler handler) throws Exception {
-        if (data == null || data.length() <= 0) {
+    public void setAlmanac(Almanac almanac) {
+        this.almanacReceived = SystemClock.elapsedRealtime();
+        this.almanac = almanac;
+    }
+
+    public void refreshAlmanac() {
+        this.almanacReceived = SystemClock.elapsedRealtime();
+    }
+
+    public boolean hasSubscribers() {
+        return !this.gpsStatusListeners.isEmpty() || !this.gnssStatusCallbacks.isEmpty() || NmeaUpdater.getInstance().hasListeners();
+    }
+
+    public int getGpsStatusListenerCount() {
+        return this.gpsStatusListeners.size();
+    }
+
+    public int getGnssStatusCallbackCount() {
+        return this.gnssStatusCallbacks.size();
+    }
+
+    public void putSatellite(int index, int prn, float snr, float elv, float azm) {
+        this.prn[index] = prn;
+        this.svidWithFlags[index] = getSvidWithFlags(prn);
+        this.snr[index] = snr;
+        this.elv[index] = elv;
+        this.azm[index] = azm;
+    }
+
+    /**
+     * Recomputes the sky from the almanac for a new fix, at most once per {@link #SKY_INTERVAL}. Called with the
+     * LocationUpdater publish lock held, which keeps fixes from the receiver and the motion model apart.
+     */
+    void updateSky(double latitude, double longitude, double altitude, long timestamp) {
+        Almanac almanac = getAlmanac();
+        Handler handler = this.defaultHandler;
+        if (almanac == null || handler == null) {
             return;
         }
+        long now = SystemClock.elapsedRealtime();
+        if (almanac == this.skyAlmanac && now - this.lastSky < SKY_INTERVAL) {
+            return;
+        }
+        this.skyAlmanac = almanac;
+        this.lastSky = now;
+        update(almanac.computeSky(latitude, longitude, altitude, timestamp, this), handler);
+    }
 
-        this.svCount = Math.min(data.length(), MAX_SVS);
-        LocationUpdater.getInstance().setSatelliteCount(this.svCount);
-        if (this.gpsStatusListeners.size() > 0 || this.gnssStatusCallbacks.size() > 0) {
-            for (int i = 0; i < this.svCount; i++) {
-                this.prn[i] = data.getJSONObject(i).getInt("prn");
-                this.snr[i] = (float) data.getJSONObject(i).getDouble("snr");
-                this.elv[i] = (float) data.getJSONObject(i).getDouble("elv");
-                this.azm[i] = (float) data.getJSONObject(i).getDouble("azm");
-            }
-
-            if (this.gpsStatusListeners.size() > 0) {
-                synchronized (this.gpsStatusListeners) {
-                    for (GpsStatus.Listener listener : this.gpsStatusListeners) {
-                        handler.post(() -> listener.onGpsStatusChanged(GpsStatus.GPS_EVENT_SATELLITE_STATUS));
-                    }
+    public void update(int svCount, Handler handler) {
+        LocationUpdater.getInstance().setSatelliteCount(svCount);
+        if (hasSubscribers()) {
+            SatelliteSnapshot snapshot = new SatelliteSnapshot(svCount, this.prn, this.svidWithFlags, this.snr, this.elv, this.azm);
+            this.snapshot = snapshot;
+
+            PipelineStats stats = PipelineStats.getInstance();
+            long sendTime = stats.currentSendTime();
+            long posted = SystemClock.elapsedRealtimeNanos();
+            for (GpsStatusListenerWrapper wrapper : this.gpsStatusListeners.snapshot()) {
+                if (wrapper.slot != null) {
+                    wrapper.slot.offer(GpsStatus.GPS_EVENT_SATELLITE_STATUS);
+                } else {
+                    handler.post(() -> {
+                        stats.recordDispatch(stats.getGpsStatusCallbacks(), posted, sendTime);
+                        wrapper.listener.onGpsStatusChanged(GpsStatus.GPS_EVENT_SATELLITE_STATUS);
+                    });
                 }
             }
-            if (this.gnssStatusCallbacks.size() > 0) {
-                synchronized (this.gnssStatusCallbacks) {
-                    for (GnssStatusCallbackWrapper wrapper : this.gnssStatusCallbacks) {
+            GnssStatusCallbackWrapper[] callbacks = this.gnssStatusCallbacks.snapshot();
+            if (callbacks.length > 0) {
+                GnssStatus status;
+                try {
+                    status = getAsGnssStatus(snapshot);
+                } catch (Exception e) {
+                    return;
+                }
+                for (GnssStatusCallbackWrapper wrapper : callbacks) {
+                    if (wrapper.slot != null) {
+                        wrapper.slot.offer(status);
+                    } else {
                         Hooks.executeCallback(() -> {
-                            try {
-                                wrapper.callback.onSatelliteStatusChanged(getAsGnssStatus());
-                            } catch (Exception ignored) {
-                            }
+                            stats.recordDispatch(stats.getGnssStatusCallbacks(), posted, sendTime);
+                            wrapper.callback.onSatelliteStatusChanged(status);
                         }, wrapper.handler, wrapper.executor);
                     }
                 }
@@ -78,15 +152,17 @@ public class SatelliteUpdater {
             listener.onGpsStatusChanged(GpsStatus.GPS_EVENT_STARTED);
             listener.onGpsStatusChanged(GpsStatus.GPS_EVENT_FIRST_FIX);
         });
-        synchronized (this.gpsStatusListeners) {
-            this.gpsStatusListeners.add(listener);
+        LatestValueSlot<Integer> slot = null;
+        if (ModuleConfig.getInstance().isCoalescing()) {
+            slot = new LatestValueSlot<>(listener::onGpsStatusChanged, handler, null, PipelineStats.getInstance().getGpsStatusCallbacks());
         }
+        this.gpsStatusListeners.put(listener, new GpsStatusListenerWrapper(listener, slot));
+        LocalBroadcastReceiver.refresh();
     }
 
     public void removeGpsStatusListener(GpsStatus.Listener listener) {
-        synchronized (this.gpsStatusListeners) {
-            this.gpsStatusListeners.remove(listener);
-        }
+        this.gpsStatusListeners.remove(listener);
+        LocalBroadcastReceiver.refresh();
     }
 
     public void addGnssStatusCallback(GnssStatus.Callback callback, Handler handler, Executor executor) {
@@ -94,68 +170,55 @@ public class SatelliteUpdater {
             callback.onStarted();
             callback.onFirstFix(5000);
         }, handler, executor);
-        synchronized (this.gnssStatusCallbacks) {
-            this.gnssStatusCallbacks.add(new GnssStatusCallbackWrapper(callback, handler, executor));
+        LatestValueSlot<GnssStatus> slot = null;
+        if (ModuleConfig.getInstance().isCoalescing()) {
+            slot = new LatestValueSlot<>(callback::onSatelliteStatusChanged, handler, executor, PipelineStats.getInstance().getGnssStatusCallbacks());
         }
+        this.gnssStatusCallbacks.put(callback, new GnssStatusCallbackWrapper(callback, handler, executor, slot));
+        LocalBroadcastReceiver.refresh();
     }
 
     public void removeGnssStatusCallback(GnssStatus.Callback callback) {
-        synchronized (this.gnssStatusCallbacks) {
-            for (Iterator<GnssStatusCallbackWrapper> itr = this.gnssStatusCallbacks.iterator(); itr.hasNext(); ) {
-                GnssStatusCallbackWrapper wrapper = itr.next();
-                if (Objects.equals(wrapper.callback, callback)) {
-                    itr.remove();
-                    break;
-                }
-            }
-        }
+        this.gnssStatusCallbacks.remove(callback);
+        LocalBroadcastReceiver.refresh();
     }
 
     public GpsStatus getAsGpsStatus(GpsStatus status) throws Exception {
+        PlatformBindings bindings = PlatformBindings.getInstance();
+        SatelliteSnapshot snapshot = this.snapshot;
         if (status == null) {
-            status = (GpsStatus) XposedHelpers.findConstructorExact(GpsStatus.class).newInstance();
+            status = bindings.newGpsStatus();
         }
-        XposedHelpers.callMethod(status, "setStatus", svCount, getSvidWithFlags(), snr, elv, azm);
-        XposedHelpers.callMethod(status, "setTimeToFirstFix", 5000);
+        bindings.setGpsStatus(status, snapshot.getSvCount(), snapshot.getSvidWithFlags(), snapshot.getSnr(), snapshot.getElv(), snapshot.getAzm(), FREQ, 5000);
         return status;
     }
 
-    private int[] getSvidWithFlags() {
-        int SVID_SHIFT = XposedHelpers.getStaticIntField(GnssStatus.class, "SVID_SHIFT_WIDTH");
-        int CONSTELLATION_SHIFT = XposedHelpers.getStaticIntField(GnssStatus.class, "CONSTELLATION_TYPE_SHIFT_WIDTH");
-        int[] svidWithFlags = new int[prn.length];
-        for (int i = 0; i < prn.length; i++) {
-            if (prn[i] >= 1 && prn[i] <= 32) { // GPS
-                svidWithFlags[i] = prn[i];
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_GPS << CONSTELLATION_SHIFT) + 7;
-            } else if (prn[i] >= 65 && prn[i] <= 96) { // GLONASS
-                svidWithFlags[i] = prn[i] - 64;
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_GLONASS << CONSTELLATION_SHIFT) + 7;
-            } else if (prn[i] >= 193 && prn[i] <= 200) { // QZSS
-                svidWithFlags[i] = prn[i];
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_QZSS << CONSTELLATION_SHIFT) + 7;
-            } else if (prn[i] >= 201 && prn[i] <= 235) { // BeiDou
-                svidWithFlags[i] = prn[i] - 200;
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_BEIDOU << CONSTELLATION_SHIFT) + 7;
-            } else if (prn[i] >= 301 && prn[i] <= 336) { // Galileo
-                svidWithFlags[i] = prn[i] - 300;
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_GALILEO << CONSTELLATION_SHIFT) + 7;
-            } else {
-                svidWithFlags[i] = prn[i];
-                svidWithFlags[i] = (svidWithFlags[i] << SVID_SHIFT) + (GnssStatus.CONSTELLATION_UNKNOWN << CONSTELLATION_SHIFT) + 7;
-            }
+    static int getSvidWithFlags(int prn) {
+        PlatformBindings bindings = PlatformBindings.getInstance();
+        if (prn >= 1 && prn <= 32) { // GPS
+            return bindings.getSvidWithFlags(prn, GnssStatus.CONSTELLATION_GPS, 7);
+        } else if (prn >= 65 && prn <= 96) { // GLONASS
+            return bindings.getSvidWithFlags(prn - 64, GnssStatus.CONSTELLATION_GLONASS, 7);
+        } else if (prn >= 193 && prn <= 200) { // QZSS
+            return bindings.getSvidWithFlags(prn, GnssStatus.CONSTELLATION_QZSS, 7);
+        } else if (prn >= 201 && prn <= 235) { // BeiDou
+            return bindings.getSvidWithFlags(prn - 200, GnssStatus.CONSTELLATION_BEIDOU, 7);
+        } else if (prn >= 301 && prn <= 336) { // Galileo
+            return bindings.getSvidWithFlags(prn - 300, GnssStatus.CONSTELLATION_GALILEO, 7);
+        } else {
+            return bindings.getSvidWithFlags(prn, GnssStatus.CONSTELLATION_UNKNOWN, 7);
         }
-        return svidWithFlags;
     }
 
-    private GnssStatus getAsGnssStatus() throws Exception {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
-            return (GnssStatus) XposedHelpers.findConstructorExact(GnssStatus.class, int.class, int[].class, float[].class, float[].class, float[].class, float[].class, float[].class)
-                    .newInstance(svCount, getSvidWithFlags(), snr, elv, azm, freq, snr);
-        } else {
-            return (GnssStatus) XposedHelpers.findConstructorExact(GnssStatus.class, int.class, int[].class, float[].class, float[].class, float[].class, float[].class)
-                    .newInstance(svCount, getSvidWithFlags(), snr, elv, azm, freq);
-        }
+    GnssStatus getAsGnssStatus(SatelliteSnapshot snapshot) throws Exception {
+        return PlatformBindings.getInstance().newGnssStatus(snapshot.getSvCount(), snapshot.getSvidWithFlags(), snapshot.getSnr(), snapshot.getElv(), snapshot.getAzm(), FREQ);
+    }
+
+    @AllArgsConstructor
+    private static class GpsStatusListenerWrapper {
+        private final GpsStatus.Listener listener;
+
+        private final LatestValueSlot<Integer> slot;
     }
 
     @AllArgsConstructor
@@ -165,5 +228,7 @@ public class SatelliteUpdater {
         private final Handler handler;
 
         private final Executor executor;
+
+        private final LatestValueSlot<GnssStatus> slot;
     }
 }
@@ -0,0 +1,183 @@
+package com.github.openrealgps.lite;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Broadcast packets in a memory-mapped file laid out as a seqlock ring, written by the server process and read by
+ * every hooked process, so fan-out no longer copies each packet through the kernel once per receiver.
+ * <pre>
+ * header: int magic, int version, int slotCount, int slotSize, long writeSeq, padded to 64 bytes
+ * slot:   long seq (odd while being written, 2n + 2 once packet n is complete), int length, payload from byte 16
+ * </pre>
+ * Readers copy a slot out and check its seq again afterwards, dropping it if the writer lapped them meanwhile.
+ */
+public class SharedRing {
+    public interface PacketHandler {
+        void onPacket(ByteBuffer view, byte[] data, int offset, int length);
+    }
+
+    public static final int SLOT_COUNT = 32;
+    public static final int SLOT_SIZE = 4096;
+    private static final int MAGIC = 0x4F525247; // "ORRG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 16;
+    private static final int WRITE_SEQ = 16;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buf;
+    private final int slotCount;
+    private final int slotSize;
+    private volatile int fence;
+
+    // Writer state
+    private long writeSeq;
+
+    // Reader state
+    private final byte[] readBuf;
+    private final ByteBuffer readView;
+    private long readSeq = -1;
+    @Getter
+    private volatile long overruns;
+
+    private SharedRing(RandomAccessFile file, MappedByteBuffer buf, int slotCount, int slotSize) {
+        this.file = file;
+        this.buf = buf;
+        this.slotCount = slotCount;
+        this.slotSize = slotSize;
+        this.readBuf = new byte[slotSize - SLOT_HEADER_SIZE];
+        this.readView = ByteBuffer.wrap(this.readBuf);
+    }
+
+    /**
+     * Maps the ring for writing, creating it if needed. An existing compatible ring keeps its write sequence, so
+     * readers in other processes carry on after the server moves to another process.
+     */
+    public static SharedRing create(String path) throws IOException {
+        File f = new File(path);
+        RandomAccessFile file = new RandomAccessFile(f, "rw");
+        try {
+            file.setLength(HEADER_SIZE + (long) SLOT_COUNT * SLOT_SIZE);
+            MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+            f.setReadable(true, false);
+            SharedRing ring = new SharedRing(file, buf, SLOT_COUNT, SLOT_SIZE);
+            if (buf.getInt(0) == MAGIC && buf.getInt(4) == VERSION && buf.getInt(8) == SLOT_COUNT && buf.getInt(12) == SLOT_SIZE) {
+                ring.writeSeq = buf.getLong(WRITE_SEQ);
+            } else {
+                for (int i = 0; i < SLOT_COUNT; i++) {
+                    buf.putLong(HEADER_SIZE + i * SLOT_SIZE, 0);
+                }
+                buf.putLong(WRITE_SEQ, 0);
+                buf.putInt(4, VERSION);
+                buf.putInt(8, SLOT_COUNT);
+                buf.putInt(12, SLOT_SIZE);
+                ring.fence();
+                buf.putInt(0, MAGIC);
+            }
+            return ring;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Maps an existing ring for reading, starting from its latest packet.
+     */
+    public static SharedRing open(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (file.length() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) {
+                throw new IOException("Not a compatible ring: " + path);
+            }
+            int slotCount = buf.getInt(8);
+            int slotSize = buf.getInt(12);
+            if (slotCount <= 0 || slotSize <= SLOT_HEADER_SIZE || file.length() < HEADER_SIZE + (long) slotCount * slotSize) {
+                throw new IOException("Corrupt ring header: " + path);
+            }
+            SharedRing ring = new SharedRing(file, buf, slotCount, slotSize);
+            ring.readSeq = Math.max(buf.getLong(WRITE_SEQ) - 1, 0);
+            return ring;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return false if the packet does not fit in a slot and has to be sent some other way
+     */
+    public synchronized boolean publish(byte[] packet) {
+        if (packet.length > this.slotSize - SLOT_HEADER_SIZE) {
+            return false;
+        }
+        long n = this.writeSeq;
+        int slot = HEADER_SIZE + (int) (n % this.slotCount) * this.slotSize;
+        this.buf.putLong(slot, 2 * n + 1);
+        fence();
+        this.buf.putInt(slot + 8, packet.length);
+        this.buf.position(slot + SLOT_HEADER_SIZE);
+        this.buf.put(packet);
+        fence();
+        this.buf.putLong(slot, 2 * n + 2);
+        this.buf.putLong(WRITE_SEQ, n + 1);
+        this.writeSeq = n + 1;
+        return true;
+    }
+
+    /**
+     * Hands every packet published since the last call to the handler, in order. Not thread-safe.
+     */
+    public void drain(PacketHandler handler) {
+        fence();
+        long end = this.buf.getLong(WRITE_SEQ);
+        if (end < this.readSeq) {
+            // Ring was recreated
+            this.readSeq = Math.max(end - 1, 0);
+        }
+        if (end - this.readSeq > this.slotCount) {
+            this.overruns += end - this.readSeq - this.slotCount;
+            this.readSeq = end - this.slotCount;
+        }
+        for (; this.readSeq < end; this.readSeq++) {
+            long n = this.readSeq;
+            int slot = HEADER_SIZE + (int) (n % this.slotCount) * this.slotSize;
+            long seq = this.buf.getLong(slot);
+            fence();
+            int length = this.buf.getInt(slot + 8);
+            if (seq != 2 * n + 2 || length < 0 || length > this.readBuf.length) {
+                this.overruns++;
+                continue;
+            }
+            this.buf.position(slot + SLOT_HEADER_SIZE);
+            this.buf.get(this.readBuf, 0, length);
+            fence();
+            if (this.buf.getLong(slot) != seq) {
+                this.overruns++;
+                continue;
+            }
+            this.readView.limit(length).position(0);
+            handler.onPacket(this.readView, this.readBuf, 0, length);
+        }
+    }
+
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    // A volatile store followed by a volatile load keeps plain buffer accesses on either side from being reordered
+    // across it, which is as close to a full fence as API 24 offers
+    @SuppressWarnings("unused")
+    private void fence() {
+        this.fence = 0;
+        int ignored = this.fence;
+    }
+}
@@ -0,0 +1,239 @@
+package com.github.openrealgps.lite;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+/**
+ * Replays a track file through the broadcast pipeline on its own thread, paced by the track timestamps divided by
+ * the playback speed. Fixes are stamped with the current time when sent, and missing speed or bearing are derived
+ * from the previous fix.
+ */
+@Slf4j
+public class TrackPlayer implements Runnable {
+    public static final double MIN_SPEED = 1;
+    public static final double MAX_SPEED = 100;
+    private static final long LOOP_GAP = 1000;
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    private final LocalServer server;
+    private final TrackReader reader;
+    private final boolean loop;
+    private final Thread thread;
+
+    // Owned by the playback thread
+    private final TrackReader.Fix fix = new TrackReader.Fix();
+    private final TrackReader.Fix previous = new TrackReader.Fix();
+    private boolean hasPrevious;
+    private float lastSpeed, lastBearing;
+
+    // Guarded by this
+    private double speed;
+    private boolean paused, stopped;
+    private long seekTarget = -1;
+    private long startTime = Long.MIN_VALUE;
+    private long position;
+    private long anchorTrack, anchorNanos;
+    private long sent;
+
+    public TrackPlayer(LocalServer server, String path, double speed, boolean loop) throws IOException {
+        this.server = server;
+        this.reader = new TrackReader(path);
+        this.speed = clampSpeed(speed);
+        this.loop = loop;
+        this.thread = new Thread(this, "OpenRealGPS-TrackPlayer");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public synchronized void pause() {
+        this.paused = true;
+        notifyAll();
+    }
+
+    public synchronized void resume() {
+        if (this.paused) {
+            this.paused = false;
+            rebase(0);
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param offset milliseconds from the first fix of the track
+     */
+    public synchronized void seek(long offset) {
+        this.seekTarget = Math.max(0, offset);
+        notifyAll();
+    }
+
+    public synchronized void setSpeed(double speed) {
+        this.speed = clampSpeed(speed);
+        rebase(0);
+        notifyAll();
+    }
+
+    public synchronized void stop() {
+        this.stopped = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isStopped() {
+        return this.stopped;
+    }
+
+    public synchronized JSONObject getStatus() throws Exception {
+        return new JSONObject()
+                .put("state", this.stopped ? "stopped" : this.paused ? "paused" : "playing")
+                .put("position", this.position / 1000.0)
+                .put("speed", this.speed)
+                .put("loop", this.loop)
+                .put("fixes", this.sent);
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean pending = false;
+            while (true) {
+                long seek;
+                synchronized (this) {
+                    while (this.paused && !this.stopped) {
+                        wait();
+                    }
+                    if (this.stopped) {
+                        return;
+                    }
+                    seek = this.seekTarget;
+                    this.seekTarget = -1;
+                }
+                if (seek >= 0) {
+                    pending = seekTo(seek);
+                }
+
+                if (!pending) {
+                    if (!this.reader.next(this.fix)) {
+                        if (!this.loop || this.sent == 0) {
+                            return;
+                        }
+                        this.reader.rewind();
+                        this.hasPrevious = false;
+                        synchronized (this) {
+                            this.position = 0;
+                            rebase(LOOP_GAP);
+                        }
+                        continue;
+                    }
+                    pending = true;
+                    synchronized (this) {
+                        if (this.startTime == Long.MIN_VALUE) {
+                            this.startTime = this.fix.timestamp;
+                            rebase(0);
+                        }
+                    }
+                }
+
+                synchronized (this) {
+                    if (this.paused || this.stopped || this.seekTarget >= 0) {
+                        continue;
+                    }
+                    long delay = this.anchorNanos + (long) ((this.fix.timestamp - this.anchorTrack) * 1000000 / this.speed) - System.nanoTime();
+                    if (delay > 0) {
+                        // Woken early by a control call or spuriously, either way the deadline is recomputed
+                        wait(delay / 1000000, (int) (delay % 1000000));
+                        continue;
+                    }
+                    this.position = this.fix.timestamp - this.startTime;
+                    this.sent++;
+                }
+                send();
+                pending = false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("Track playback failed: {}", String.valueOf(e));
+        } finally {
+            synchronized (this) {
+                this.stopped = true;
+            }
+            try {
+                this.reader.close();
+            } catch (IOException e) {
+                log.warn("Failed to close track: {}", String.valueOf(e));
+            }
+        }
+    }
+
+    // Scans from the start of the track, leaving the first fix at or after the offset in this.fix
+    private boolean seekTo(long offset) {
+        this.reader.rewind();
+        this.hasPrevious = false;
+        while (this.reader.next(this.fix)) {
+            synchronized (this) {
+                if (this.startTime == Long.MIN_VALUE) {
+                    this.startTime = this.fix.timestamp;
+                }
+                if (this.fix.timestamp - this.startTime >= offset) {
+                    this.position = this.fix.timestamp - this.startTime;
+                    rebase(0);
+                    return true;
+                }
+            }
+            remember(this.fix.speed, this.fix.bearing);
+        }
+        return false;
+    }
+
+    private void send() {
+        float speed = this.fix.speed;
+        float bearing = this.fix.bearing;
+        if ((Float.isNaN(speed) || Float.isNaN(bearing)) && this.hasPrevious && this.fix.timestamp > this.previous.timestamp) {
+            double north = Math.toRadians(this.fix.latitude - this.previous.latitude) * EARTH_RADIUS;
+            double east = Math.toRadians(this.fix.longitude - this.previous.longitude) * EARTH_RADIUS * Math.cos(Math.toRadians(this.fix.latitude));
+            double distance = Math.hypot(north, east);
+            if (Float.isNaN(speed)) {
+                speed = (float) (distance * 1000 / (this.fix.timestamp - this.previous.timestamp));
+            }
+            if (Float.isNaN(bearing) && distance > 0.1) {
+                double degrees = Math.toDegrees(Math.atan2(east, north));
+                bearing = (float) (degrees < 0 ? degrees + 360 : degrees);
+            }
+        }
+        speed = Float.isNaN(speed) ? this.lastSpeed : speed;
+        bearing = Float.isNaN(bearing) ? this.lastBearing : bearing;
+        remember(speed, bearing);
+
+        try {
+            this.server.broadcast(WireFormat.encodeLocation(this.fix.latitude, this.fix.longitude,
+                    Double.isNaN(this.fix.altitude) ? 0 : this.fix.altitude, speed, bearing,
+                    Float.isNaN(this.fix.accuracy) ? 5 : this.fix.accuracy, System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.warn("Failed to broadcast track fix: {}", String.valueOf(e));
+        }
+    }
+
+    private void remember(float speed, float bearing) {
+        TrackReader.Fix fix = this.fix;
+        this.previous.timestamp = fix.timestamp;
+        this.previous.latitude = fix.latitude;
+        this.previous.longitude = fix.longitude;
+        this.hasPrevious = true;
+        this.lastSpeed = Float.isNaN(speed) ? this.lastSpeed : speed;
+        this.lastBearing = Float.isNaN(bearing) ? this.lastBearing : bearing;
+    }
+
+    // Pace the following fixes from the current position, optionally after a wall clock delay
+    private void rebase(long delayMillis) {
+        this.anchorTrack = this.startTime + this.position;
+        this.anchorNanos = System.nanoTime() + delayMillis * 1000000;
+    }
+
+    private static double clampSpeed(double speed) {
+        return Double.isNaN(speed) ? MIN_SPEED : Math.max(MIN_SPEED, Math.min(speed, MAX_SPEED));
+    }
+}
@@ -0,0 +1,359 @@
+package com.github.openrealgps.lite;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Streams fixes out of a memory-mapped GPX, NMEA or CSV track, one record at a time, so long tracks stay off the heap.
+ * <ul>
+ * <li>CSV: {@code timestamp,latitude,longitude[,altitude[,speed[,bearing[,accuracy]]]]}, timestamp in milliseconds,
+ * lines not starting with a digit are skipped</li>
+ * <li>NMEA: one fix per RMC sentence, altitude from the latest GGA sentence</li>
+ * <li>GPX: {@code trkpt} elements with {@code time} and optional {@code ele}, {@code speed} and {@code course}</li>
+ * </ul>
+ * Fields that are absent are NaN. Not thread-safe.
+ */
+public class TrackReader implements Closeable {
+    public enum Format {
+        CSV, NMEA, GPX
+    }
+
+    public static class Fix {
+        public long timestamp;
+        public double latitude, longitude, altitude;
+        public float speed, bearing, accuracy;
+    }
+
+    private static final int MAX_RECORD = 4096;
+    private static final int MAX_FIELDS = 24;
+    private static final byte[] TRKPT_OPEN = "<trkpt".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRKPT_CLOSE = "</trkpt>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAT = "lat=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LON = "lon=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ELE = "<ele>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIME = "<time>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SPEED = "<speed>".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] COURSE = "<course>".getBytes(StandardCharsets.US_ASCII);
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buf;
+    private final Format format;
+    private final JsonPullParser numbers = new JsonPullParser();
+    private final byte[] record = new byte[MAX_RECORD];
+    private int recordLength;
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fieldCount;
+    private double nmeaAltitude = Double.NaN;
+
+    public TrackReader(String path) throws IOException {
+        String lowerPath = path.toLowerCase(Locale.ROOT);
+        if (lowerPath.endsWith(".gpx")) {
+            this.format = Format.GPX;
+        } else if (lowerPath.endsWith(".csv")) {
+            this.format = Format.CSV;
+        } else {
+            this.format = Format.NMEA;
+        }
+        this.file = new RandomAccessFile(path, "r");
+        try {
+            this.buf = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.file.length());
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public void rewind() {
+        this.buf.position(0);
+        this.nmeaAltitude = Double.NaN;
+    }
+
+    public boolean next(Fix fix) {
+        switch (this.format) {
+            case CSV:
+                return nextCsv(fix);
+            case GPX:
+                return nextGpx(fix);
+            default:
+                return nextNmea(fix);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.file.close();
+    }
+
+    private boolean nextCsv(Fix fix) {
+        while (readLine()) {
+            if (this.recordLength == 0 || this.record[0] < '0' || this.record[0] > '9') {
+                continue;
+            }
+            split((byte) ',');
+            if (this.fieldCount < 3) {
+                continue;
+            }
+            fix.timestamp = (long) field(0);
+            fix.latitude = field(1);
+            fix.longitude = field(2);
+            fix.altitude = field(3);
+            fix.speed = (float) field(4);
+            fix.bearing = (float) field(5);
+            fix.accuracy = (float) field(6);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean nextNmea(Fix fix) {
+        while (readLine()) {
+            if (this.recordLength < 7 || this.record[0] != '$') {
+                continue;
+            }
+            int end = this.recordLength;
+            for (int i = 0; i < end; i++) {
+                if (this.record[i] == '*') {
+                    end = i;
+                    break;
+                }
+            }
+            this.recordLength = end;
+            split((byte) ',');
+            if (typeIs("GGA") && this.fieldCount > 9) {
+                this.nmeaAltitude = field(9);
+            } else if (typeIs("RMC") && this.fieldCount > 9 && this.fieldStart[2] < this.fieldEnd[2] && this.record[this.fieldStart[2]] == 'A') {
+                fix.latitude = nmeaDegrees(3, 2);
+                fix.longitude = nmeaDegrees(5, 3);
+                if (this.record[this.fieldStart[4]] == 'S') {
+                    fix.latitude = -fix.latitude;
+                }
+                if (this.record[this.fieldStart[6]] == 'W') {
+                    fix.longitude = -fix.longitude;
+                }
+                fix.speed = (float) (field(7) / 1.943844);
+                fix.bearing = (float) field(8);
+                fix.altitude = this.nmeaAltitude;
+                fix.accuracy = Float.NaN;
+                int date = (int) field(9);
+                int year = date % 100 < 80 ? 2000 + date % 100 : 1900 + date % 100;
+                double time = field(1);
+                long timeOfDay = Math.round(((int) (time / 10000) * 3600 + (int) (time / 100) % 100 * 60 + time % 100) * 1000);
+                fix.timestamp = daysFromCivil(year, date / 100 % 100, date / 10000) * 86400000L + timeOfDay;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean nextGpx(Fix fix) {
+        int start;
+        // Points without a time or position are skipped
+        while ((start = indexOf(TRKPT_OPEN, this.buf.position(), this.buf.limit())) >= 0) {
+            int end = indexOf(TRKPT_CLOSE, start, this.buf.limit());
+            end = end < 0 ? this.buf.limit() : end + TRKPT_CLOSE.length;
+            this.buf.position(end);
+
+            this.recordLength = Math.min(end - start, MAX_RECORD);
+            for (int i = 0; i < this.recordLength; i++) {
+                this.record[i] = this.buf.get(start + i);
+            }
+            fix.latitude = attribute(LAT);
+            fix.longitude = attribute(LON);
+            fix.altitude = element(ELE);
+            fix.speed = (float) element(SPEED);
+            fix.bearing = (float) element(COURSE);
+            fix.accuracy = Float.NaN;
+            int time = recordIndexOf(TIME, 0);
+            fix.timestamp = time < 0 ? Long.MIN_VALUE : isoTime(time + TIME.length);
+            if (!Double.isNaN(fix.latitude) && !Double.isNaN(fix.longitude) && fix.timestamp != Long.MIN_VALUE) {
+                return true;
+            }
+        }
+        this.buf.position(this.buf.limit());
+        return false;
+    }
+
+    private boolean readLine() {
+        int pos = this.buf.position();
+        int limit = this.buf.limit();
+        if (pos >= limit) {
+            return false;
+        }
+        int length = 0;
+        while (pos < limit) {
+            byte b = this.buf.get(pos++);
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r' && length < MAX_RECORD) {
+                this.record[length++] = b;
+            }
+        }
+        this.buf.position(pos);
+        this.recordLength = length;
+        return true;
+    }
+
+    private void split(byte delimiter) {
+        this.fieldCount = 0;
+        int start = 0;
+        for (int i = 0; i <= this.recordLength && this.fieldCount < MAX_FIELDS; i++) {
+            if (i == this.recordLength || this.record[i] == delimiter) {
+                this.fieldStart[this.fieldCount] = start;
+                this.fieldEnd[this.fieldCount] = i;
+                this.fieldCount++;
+                start = i + 1;
+            }
+        }
+    }
+
+    private double field(int index) {
+        if (index >= this.fieldCount) {
+            return Double.NaN;
+        }
+        return number(this.fieldStart[index], this.fieldEnd[index]);
+    }
+
+    private double number(int start, int end) {
+        while (start < end && this.record[start] == ' ') {
+            start++;
+        }
+        if (start >= end) {
+            return Double.NaN;
+        }
+        this.numbers.reset(this.record, start, end - start);
+        try {
+            return this.numbers.nextDouble();
+        } catch (IllegalArgumentException e) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean typeIs(String type) {
+        int end = this.fieldEnd[0];
+        if (end - this.fieldStart[0] < 6) {
+            return false;
+        }
+        for (int i = 0; i < 3; i++) {
+            if (this.record[end - 3 + i] != type.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double nmeaDegrees(int index, int degreeDigits) {
+        int start = this.fieldStart[index];
+        int end = this.fieldEnd[index];
+        if (end - start <= degreeDigits) {
+            return Double.NaN;
+        }
+        return number(start, start + degreeDigits) + number(start + degreeDigits, end) / 60.0;
+    }
+
+    private double attribute(byte[] name) {
+        int i = recordIndexOf(name, 0);
+        // Only after whitespace, so "lat=" does not match inside another attribute's name
+        while (i > 0 && !isWhitespace(this.record[i - 1])) {
+            i = recordIndexOf(name, i + 1);
+        }
+        if (i <= 0) {
+            return Double.NaN;
+        }
+        i += name.length + 1; // skip quote
+        int end = i;
+        while (end < this.recordLength && this.record[end] != '"' && this.record[end] != '\'') {
+            end++;
+        }
+        return number(i, end);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private double element(byte[] tag) {
+        int i = recordIndexOf(tag, 0);
+        if (i < 0) {
+            return Double.NaN;
+        }
+        i += tag.length;
+        int end = i;
+        while (end < this.recordLength && this.record[end] != '<') {
+            end++;
+        }
+        return number(i, end);
+    }
+
+    // yyyy-MM-ddTHH:mm:ss[.SSS](Z|+HH:mm|-HH:mm)
+    private long isoTime(int i) {
+        if (i + 19 > this.recordLength) {
+            return Long.MIN_VALUE;
+        }
+        long days = daysFromCivil(digits(i, 4), digits(i + 5, 2), digits(i + 8, 2));
+        long ms = ((days * 24 + digits(i + 11, 2)) * 60 + digits(i + 14, 2)) * 60000L + digits(i + 17, 2) * 1000L;
+        i += 19;
+        if (i < this.recordLength && this.record[i] == '.') {
+            int scale = 100;
+            for (i++; i < this.recordLength && this.record[i] >= '0' && this.record[i] <= '9'; i++) {
+                ms += (this.record[i] - '0') * scale;
+                scale /= 10;
+            }
+        }
+        if (i + 6 <= this.recordLength && (this.record[i] == '+' || this.record[i] == '-')) {
+            long offset = (digits(i + 1, 2) * 60L + digits(i + 4, 2)) * 60000L;
+            ms += this.record[i] == '+' ? -offset : offset;
+        }
+        return ms;
+    }
+
+    private int digits(int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            value = value * 10 + (this.record[i] - '0');
+        }
+        return value;
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (this.buf.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int recordIndexOf(byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= this.recordLength - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (this.record[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    // See http://howardhinnant.github.io/date_algorithms.html
+    private static long daysFromCivil(long year, long month, long day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yoe = year - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+}
@@ -0,0 +1,451 @@
+package com.github.openrealgps.lite;
+
+import android.os.Handler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary broadcast packets (big-endian), header: short magic, byte version, byte type, int sequence, long send time.
+ * The sequence and send time ({@code SystemClock.elapsedRealtime()}) are stamped by the server as the packet goes out.
+ * <pre>
+ * TYPE_LOCATION:   double latitude, longitude, altitude, float speed, bearing, accuracy, long timestamp
+ * TYPE_SATELLITES: short count, count * (short prn, float snr, elv, azm)
+ * TYPE_MOTION:     float rate, short count,
+ *                  count * (double latitude, longitude, altitude, long timestamp, float speed, bearing, accuracy)
+ * TYPE_ALMANAC:    short count, count * (short prn, short week, double eccentricity, toa, inclination,
+ *                  rateOfRightAscension, sqrtA, rightAscension, argumentOfPerigee, meanAnomaly), count 0 clears it
+ * </pre>
+ * JSON packets never start with the magic, so receivers accept both.
+ */
+public final class WireFormat {
+    public static final short MAGIC = 0x4F52; // "OR"
+    public static final byte VERSION = 2;
+    public static final int HEADER_SIZE = 16;
+
+    public static final byte TYPE_LOCATION = 1;
+    public static final byte TYPE_SATELLITES = 2;
+    public static final byte TYPE_MOTION = 3;
+    public static final byte TYPE_RING = 4; // Header only, stamped like the packet it announces in the shared ring
+    public static final byte TYPE_STATS = 5; // Header only, receivers reply to the sender with their stats as JSON
+    public static final byte TYPE_ALMANAC = 6;
+    public static final byte TYPE_RING_UNAVAILABLE = 7; // Header only, receivers that cannot map the ring answer a doorbell with it
+
+    private static final int LOCATION_SIZE = 3 * 8 + 3 * 4 + 8;
+    private static final int SATELLITE_SIZE = 2 + 3 * 4;
+    private static final int WAYPOINT_SIZE = 3 * 8 + 8 + 3 * 4;
+    private static final int ALMANAC_ENTRY_SIZE = 2 + 2 + 8 * 8;
+    // Largest packet the server broadcasts, a full almanac
+    public static final int MAX_SIZE = HEADER_SIZE + 2 + Almanac.MAX_SATELLITES * ALMANAC_ENTRY_SIZE;
+
+    private static final byte[][] METHODS = {ascii("updateLocation"), ascii("updateSatellites")};
+    private static final byte[][] LOCATION_KEYS = {
+            ascii("latitude"), ascii("longitude"), ascii("altitude"),
+            ascii("speed"), ascii("bearing"), ascii("accuracy"), ascii("timestamp")
+    };
+    private static final byte[][] SATELLITE_KEYS = {ascii("prn"), ascii("snr"), ascii("elv"), ascii("azm")};
+
+    private WireFormat() {
+    }
+
+    public static byte[] encode(JSONArray root) throws Exception {
+        switch (root.optString(0)) {
+            case "updateLocation":
+                return encodeLocation(root.getJSONArray(2).getJSONObject(0));
+            case "updateSatellites":
+                return encodeSatellites(root.getJSONArray(2).getJSONArray(0));
+            case "updateMotion":
+                return encodeMotion(root.getJSONArray(2).getJSONObject(0));
+            default:
+                return null;
+        }
+    }
+
+    private static byte[] encodeLocation(JSONObject data) throws Exception {
+        return encodeLocation(data.getDouble("latitude"), data.getDouble("longitude"), data.getDouble("altitude"),
+                (float) data.getDouble("speed"), (float) data.getDouble("bearing"), (float) data.getDouble("accuracy"), data.getLong("timestamp"));
+    }
+
+    public static byte[] encodeLocation(double latitude, double longitude, double altitude, float speed, float bearing, float accuracy, long timestamp) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + LOCATION_SIZE);
+        putHeader(out, TYPE_LOCATION);
+        out.putDouble(latitude);
+        out.putDouble(longitude);
+        out.putDouble(altitude);
+        out.putFloat(speed);
+        out.putFloat(bearing);
+        out.putFloat(accuracy);
+        out.putLong(timestamp);
+        return out.array();
+    }
+
+    private static byte[] encodeSatellites(JSONArray data) throws Exception {
+        int count = Math.min(data.length(), SatelliteUpdater.MAX_SVS);
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 2 + count * SATELLITE_SIZE);
+        putHeader(out, TYPE_SATELLITES);
+        out.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            JSONObject sv = data.getJSONObject(i);
+            out.putShort((short) sv.getInt("prn"));
+            out.putFloat((float) sv.getDouble("snr"));
+            out.putFloat((float) sv.getDouble("elv"));
+            out.putFloat((float) sv.getDouble("azm"));
+        }
+        return out.array();
+    }
+
+    private static byte[] encodeMotion(JSONObject data) throws Exception {
+        JSONArray waypoints = data.getJSONArray("waypoints");
+        if (waypoints.length() > MotionModel.MAX_WAYPOINTS) {
+            throw new IllegalArgumentException("At most " + MotionModel.MAX_WAYPOINTS + " waypoints are supported");
+        }
+        float rate = (float) data.optDouble("rate", 10);
+        if (!isValidRate(rate)) {
+            throw new IllegalArgumentException("Motion rate must be a positive number");
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 4 + 2 + waypoints.length() * WAYPOINT_SIZE);
+        putHeader(out, TYPE_MOTION);
+        out.putFloat(rate);
+        out.putShort((short) waypoints.length());
+        for (int i = 0; i < waypoints.length(); i++) {
+            JSONObject waypoint = waypoints.getJSONObject(i);
+            if (i > 0 && waypoint.getLong("timestamp") <= waypoints.getJSONObject(i - 1).getLong("timestamp")) {
+                throw new IllegalArgumentException("Waypoint timestamps must be strictly increasing");
+            }
+            out.putDouble(waypoint.getDouble("latitude"));
+            out.putDouble(waypoint.getDouble("longitude"));
+            out.putDouble(waypoint.optDouble("altitude", 0));
+            out.putLong(waypoint.getLong("timestamp"));
+            out.putFloat((float) waypoint.optDouble("speed", Double.NaN));
+            out.putFloat((float) waypoint.optDouble("bearing", Double.NaN));
+            out.putFloat((float) waypoint.optDouble("accuracy", 5));
+        }
+        return out.array();
+    }
+
+    public static byte[] encodeAlmanac(Almanac almanac) {
+        int count = almanac != null ? almanac.count : 0;
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + 2 + count * ALMANAC_ENTRY_SIZE);
+        putHeader(out, TYPE_ALMANAC);
+        out.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            out.putShort((short) almanac.prn[i]);
+            out.putShort((short) almanac.week[i]);
+            out.putDouble(almanac.eccentricity[i]);
+            out.putDouble(almanac.toa[i]);
+            out.putDouble(almanac.inclination[i]);
+            out.putDouble(almanac.rateOfRightAscension[i]);
+            out.putDouble(almanac.sqrtA[i]);
+            out.putDouble(almanac.rightAscension[i]);
+            out.putDouble(almanac.argumentOfPerigee[i]);
+            out.putDouble(almanac.meanAnomaly[i]);
+        }
+        return out.array();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void putHeader(ByteBuffer out, byte type) {
+        out.putShort(MAGIC);
+        out.put(VERSION);
+        out.put(type);
+        out.putInt(0);
+        out.putLong(0);
+    }
+
+    /**
+     * @return false for JSON packets, which are sent unstamped
+     */
+    public static boolean stamp(byte[] packet, int sequence, long sendTime) {
+        if (packet.length < HEADER_SIZE || ((packet[0] & 0xFF) << 8 | (packet[1] & 0xFF)) != MAGIC) {
+            return false;
+        }
+        ByteBuffer.wrap(packet).putInt(4, sequence).putLong(8, sendTime);
+        return true;
+    }
+
+    public static void copyStamp(byte[] from, byte[] to) {
+        System.arraycopy(from, 4, to, 4, HEADER_SIZE - 4);
+    }
+
+    public static byte[] encodeHeaderOnly(byte type) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(out, type);
+        return out.array();
+    }
+
+    /**
+     * Checks that a producer-built packet is a complete location, satellites or motion update, so it can be broadcast
+     * as is.
+     */
+    public static boolean isValidUpdate(byte[] packet, int length) {
+        if (length < HEADER_SIZE + 2) {
+            return false;
+        }
+        ByteBuffer data = ByteBuffer.wrap(packet, 0, length);
+        if (data.getShort(0) != MAGIC || data.get(2) != VERSION) {
+            return false;
+        }
+        switch (data.get(3)) {
+            case TYPE_LOCATION:
+                return length == HEADER_SIZE + LOCATION_SIZE;
+            case TYPE_SATELLITES:
+                int count = data.getShort(HEADER_SIZE) & 0xFFFF;
+                return count <= SatelliteUpdater.MAX_SVS && length == HEADER_SIZE + 2 + count * SATELLITE_SIZE;
+            case TYPE_MOTION:
+                if (length < HEADER_SIZE + 6) {
+                    return false;
+                }
+                count = data.getShort(HEADER_SIZE + 4) & 0xFFFF;
+                return count <= MotionModel.MAX_WAYPOINTS && length == HEADER_SIZE + 6 + count * WAYPOINT_SIZE
+                        && isValidMotion(data, count);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isValidMotion(ByteBuffer data, int count) {
+        if (!isValidRate(data.getFloat(HEADER_SIZE))) {
+            return false;
+        }
+        for (int i = 1, p = HEADER_SIZE + 6 + 24; i < count; i++, p += WAYPOINT_SIZE) {
+            if (data.getLong(p + WAYPOINT_SIZE) <= data.getLong(p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidRate(float rate) {
+        return rate > 0 && !Float.isInfinite(rate);
+    }
+
+    public static boolean isBinary(ByteBuffer data) {
+        return data.remaining() >= HEADER_SIZE && data.getShort(data.position()) == MAGIC;
+    }
+
+    public static byte typeOf(ByteBuffer data) {
+        return data.get(data.position() + 3);
+    }
+
+    public static int sequenceOf(ByteBuffer data) {
+        return data.getInt(data.position() + 4);
+    }
+
+    public static long sendTimeOf(ByteBuffer data) {
+        return data.getLong(data.position() + 8);
+    }
+
+    public static void decode(ByteBuffer data, Handler handler) throws Exception {
+        data.getShort();
+        byte version = data.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported wire format version " + version);
+        }
+        byte type = data.get();
+        data.position(data.position() + HEADER_SIZE - 4);
+        switch (type) {
+            case TYPE_LOCATION:
+                LocationUpdater.getInstance().update(data.getDouble(), data.getDouble(), data.getDouble(),
+                        data.getFloat(), data.getFloat(), data.getFloat(), data.getLong());
+                break;
+            case TYPE_SATELLITES:
+                decodeSatellites(data, handler);
+                break;
+            case TYPE_MOTION:
+                decodeMotion(data);
+                break;
+            case TYPE_ALMANAC:
+                decodeAlmanac(data);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown update type " + type);
+        }
+    }
+
+    public static void decodeJson(JsonPullParser parser, Handler handler) {
+        parser.beginArray();
+        switch (parser.nextString(METHODS)) {
+            case 0:
+                // The sky is computed for each fix while an almanac is loaded
+                if (LocationUpdater.getInstance().hasSubscribers()
+                        || SatelliteUpdater.getInstance().getAlmanac() != null && SatelliteUpdater.getInstance().hasSubscribers()) {
+                    parser.skipValue();
+                    parser.beginArray();
+                    decodeJsonLocation(parser);
+                }
+                break;
+            case 1:
+                SatelliteUpdater updater = SatelliteUpdater.getInstance();
+                if (updater.getAlmanac() != null) {
+                    break;
+                }
+                if (updater.hasSubscribers()) {
+                    parser.skipValue();
+                    parser.beginArray();
+                    decodeJsonSatellites(parser, updater, handler);
+                } else if (LocationUpdater.getInstance().hasSubscribers()) {
+                    parser.skipValue();
+                    parser.beginArray();
+                    int count = Math.min(parser.skipValue(), SatelliteUpdater.MAX_SVS);
+                    if (count > 0) {
+                        updater.update(count, handler);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown update type");
+        }
+    }
+
+    private static void decodeJsonLocation(JsonPullParser parser) {
+        double latitude = 0, longitude = 0, altitude = 0;
+        float speed = 0, bearing = 0, accuracy = 0;
+        long timestamp = 0;
+        int found = 0;
+        parser.beginObject();
+        while (parser.hasNext()) {
+            int key = parser.nextName(LOCATION_KEYS);
+            switch (key) {
+                case 0:
+                    latitude = parser.nextDouble();
+                    break;
+                case 1:
+                    longitude = parser.nextDouble();
+                    break;
+                case 2:
+                    altitude = parser.nextDouble();
+                    break;
+                case 3:
+                    speed = (float) parser.nextDouble();
+                    break;
+                case 4:
+                    bearing = (float) parser.nextDouble();
+                    break;
+                case 5:
+                    accuracy = (float) parser.nextDouble();
+                    break;
+                case 6:
+                    timestamp = parser.nextLong();
+                    break;
+                default:
+                    parser.skipValue();
+                    continue;
+            }
+            found |= 1 << key;
+        }
+        if (found != (1 << LOCATION_KEYS.length) - 1) {
+            throw new IllegalArgumentException("Incomplete location data");
+        }
+        LocationUpdater.getInstance().update(latitude, longitude, altitude, speed, bearing, accuracy, timestamp);
+    }
+
+    private static void decodeJsonSatellites(JsonPullParser parser, SatelliteUpdater updater, Handler handler) {
+        int count = 0;
+        parser.beginArray();
+        while (parser.hasNext()) {
+            if (count >= SatelliteUpdater.MAX_SVS) {
+                parser.skipValue();
+                continue;
+            }
+            int prn = 0;
+            float snr = 0, elv = 0, azm = 0;
+            int found = 0;
+            parser.beginObject();
+            while (parser.hasNext()) {
+                int key = parser.nextName(SATELLITE_KEYS);
+                switch (key) {
+                    case 0:
+                        prn = parser.nextInt();
+                        break;
+                    case 1:
+                        snr = (float) parser.nextDouble();
+                        break;
+                    case 2:
+                        elv = (float) parser.nextDouble();
+                        break;
+                    case 3:
+                        azm = (float) parser.nextDouble();
+                        break;
+                    default:
+                        parser.skipValue();
+                        continue;
+                }
+                found |= 1 << key;
+            }
+            parser.endObject();
+            if (found != (1 << SATELLITE_KEYS.length) - 1) {
+                throw new IllegalArgumentException("Incomplete satellite data");
+            }
+            updater.putSatellite(count++, prn, snr, elv, azm);
+        }
+        if (count > 0) {
+            updater.update(count, handler);
+        }
+    }
+
+    private static void decodeMotion(ByteBuffer data) {
+        float rate = data.getFloat();
+        int count = Math.min(data.getShort() & 0xFFFF, MotionModel.MAX_WAYPOINTS);
+        MotionModel model = LocationUpdater.getInstance().getMotionModel();
+        for (int i = 0; i < count; i++) {
+            model.putWaypoint(i, data.getDouble(), data.getDouble(), data.getDouble(), data.getLong(),
+                    data.getFloat(), data.getFloat(), data.getFloat());
+        }
+        model.start(count, rate);
+    }
+
+    private static void decodeAlmanac(ByteBuffer data) {
+        int count = Math.min(data.getShort() & 0xFFFF, Math.min(data.remaining() / ALMANAC_ENTRY_SIZE, Almanac.MAX_SATELLITES));
+        SatelliteUpdater updater = SatelliteUpdater.getInstance();
+        if (count == 0) {
+            updater.setAlmanac(null);
+            return;
+        }
+        Almanac current = updater.getAlmanac();
+        if (current != null && current.count == count && almanacMatches(current, data)) {
+            // Periodic rebroadcast of the almanac already in use
+            updater.refreshAlmanac();
+            return;
+        }
+        Almanac almanac = new Almanac(count);
+        for (int i = 0; i < count; i++) {
+            almanac.set(i, data.getShort() & 0xFFFF, data.getShort() & 0xFFFF, data.getDouble(), data.getDouble(),
+                    data.getDouble(), data.getDouble(), data.getDouble(), data.getDouble(), data.getDouble(), data.getDouble());
+        }
+        updater.setAlmanac(almanac);
+    }
+
+    private static boolean almanacMatches(Almanac almanac, ByteBuffer data) {
+        int p = data.position();
+        for (int i = 0; i < almanac.count; i++, p += ALMANAC_ENTRY_SIZE) {
+            if ((data.getShort(p) & 0xFFFF) != almanac.prn[i] || (data.getShort(p + 2) & 0xFFFF) != almanac.week[i]
+                    || data.getDouble(p + 4) != almanac.eccentricity[i] || data.getDouble(p + 12) != almanac.toa[i]
+                    || data.getDouble(p + 20) != almanac.inclination[i] || data.getDouble(p + 28) != almanac.rateOfRightAscension[i]
+                    || data.getDouble(p + 36) != almanac.sqrtA[i] || data.getDouble(p + 44) != almanac.rightAscension[i]
+                    || data.getDouble(p + 52) != almanac.argumentOfPerigee[i] || data.getDouble(p + 60) != almanac.meanAnomaly[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void decodeSatellites(ByteBuffer data, Handler handler) {
+        int count = Math.min(data.getShort() & 0xFFFF, SatelliteUpdater.MAX_SVS);
+        SatelliteUpdater updater = SatelliteUpdater.getInstance();
+        if (count <= 0 || updater.getAlmanac() != null) {
+            // The almanac drives the sky while one is loaded
+            return;
+        }
+        if (updater.hasSubscribers()) {
+            for (int i = 0; i < count; i++) {
+                updater.putSatellite(i, data.getShort() & 0xFFFF, data.getFloat(), data.getFloat(), data.getFloat());
+            }
+        }
+        updater.update(count, handler);
+    }
+}
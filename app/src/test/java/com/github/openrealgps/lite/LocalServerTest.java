@@ -0,0 +1,61 @@
+package com.github.openrealgps.lite;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LocalServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<byte[]> drain(SharedRing ring) {
+        List<byte[]> packets = new ArrayList<>();
+        ring.drain((view, data, offset, length) -> packets.add(Arrays.copyOfRange(data, offset, offset + length)));
+        return packets;
+    }
+
+    @Test
+    public void jsonPacketsBypassRingAndSequence() throws IOException {
+        String path = new File(this.folder.getRoot(), "test.ring").getPath();
+        LocalServer server = new LocalServer(0);
+        server.openRing(path);
+        SharedRing reader = SharedRing.open(path);
+
+        byte[] first = WireFormat.encodeLocation(1, 2, 3, 0, 0, 5, 1000);
+        ByteBuffer doorbell = ByteBuffer.wrap(server.prepareBroadcast(first));
+        assertEquals(WireFormat.TYPE_RING, WireFormat.typeOf(doorbell));
+        assertEquals(1, WireFormat.sequenceOf(doorbell));
+
+        byte[] json = "[\"updateLocation\",0,[{\"latitude\":1,\"longitude\":2}]]".getBytes(StandardCharsets.UTF_8);
+        byte[] original = json.clone();
+        byte[] sent = server.prepareBroadcast(json);
+        assertSame(json, sent);
+        assertArrayEquals(original, sent);
+
+        byte[] second = WireFormat.encodeLocation(1, 2, 3, 0, 0, 5, 2000);
+        doorbell = ByteBuffer.wrap(server.prepareBroadcast(second));
+        assertEquals(WireFormat.TYPE_RING, WireFormat.typeOf(doorbell));
+        // No gap for the JSON packet in between
+        assertEquals(2, WireFormat.sequenceOf(doorbell));
+
+        List<byte[]> packets = drain(reader);
+        assertEquals(2, packets.size());
+        assertArrayEquals(first, packets.get(0));
+        assertArrayEquals(second, packets.get(1));
+        assertTrue(drain(reader).isEmpty());
+        reader.close();
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.openrealgps.lite;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharedRingTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String newPath() throws IOException {
+        return new File(this.folder.getRoot(), "test.ring").getPath();
+    }
+
+    private static byte[] packet(int n, int length) {
+        byte[] packet = new byte[length];
+        Arrays.fill(packet, (byte) n);
+        return packet;
+    }
+
+    private static List<byte[]> drain(SharedRing ring) {
+        List<byte[]> packets = new ArrayList<>();
+        ring.drain((view, data, offset, length) -> {
+            assertEquals(0, view.position());
+            assertEquals(length, view.remaining());
+            packets.add(Arrays.copyOfRange(data, offset, offset + length));
+        });
+        return packets;
+    }
+
+    @Test
+    public void drainsPublishedPacketsInOrder() throws IOException {
+        String path = newPath();
+        SharedRing writer = SharedRing.create(path);
+        SharedRing reader = SharedRing.open(path);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(writer.publish(packet(i, 10 + i)));
+        }
+        List<byte[]> packets = drain(reader);
+        assertEquals(5, packets.size());
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(packet(i, 10 + i), packets.get(i));
+        }
+        assertTrue(drain(reader).isEmpty());
+
+        writer.publish(packet(5, 1));
+        assertEquals(1, drain(reader).size());
+        assertEquals(0, reader.getOverruns());
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void readerStartsFromLatestPacket() throws IOException {
+        String path = newPath();
+        SharedRing writer = SharedRing.create(path);
+        for (int i = 0; i < 3; i++) {
+            writer.publish(packet(i, 8));
+        }
+
+        SharedRing reader = SharedRing.open(path);
+        List<byte[]> packets = drain(reader);
+        assertEquals(1, packets.size());
+        assertArrayEquals(packet(2, 8), packets.get(0));
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void countsOverrunsWhenLapped() throws IOException {
+        String path = newPath();
+        SharedRing writer = SharedRing.create(path);
+        SharedRing reader = SharedRing.open(path);
+
+        int total = SharedRing.SLOT_COUNT + 5;
+        for (int i = 0; i < total; i++) {
+            writer.publish(packet(i, 16));
+        }
+        List<byte[]> packets = drain(reader);
+        assertEquals(SharedRing.SLOT_COUNT, packets.size());
+        assertEquals(5, reader.getOverruns());
+        assertArrayEquals(packet(5, 16), packets.get(0));
+        assertArrayEquals(packet(total - 1, 16), packets.get(packets.size() - 1));
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void skipsSlotBeingWritten() throws IOException {
+        String path = newPath();
+        SharedRing writer = SharedRing.create(path);
+        SharedRing reader = SharedRing.open(path);
+        writer.publish(packet(0, 16));
+
+        // Leave the first slot's seq odd, as if the writer were preempted mid-publish
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(64);
+            file.writeLong(1);
+        }
+        assertTrue(drain(reader).isEmpty());
+        assertEquals(1, reader.getOverruns());
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void rejectsPacketLargerThanSlot() throws IOException {
+        SharedRing writer = SharedRing.create(newPath());
+        assertFalse(writer.publish(new byte[SharedRing.SLOT_SIZE]));
+        assertTrue(writer.publish(new byte[SharedRing.SLOT_SIZE - 16]));
+        writer.close();
+    }
+
+    @Test
+    public void recreatedRingKeepsWriteSequence() throws IOException {
+        String path = newPath();
+        SharedRing writer = SharedRing.create(path);
+        SharedRing reader = SharedRing.open(path);
+        writer.publish(packet(0, 4));
+        writer.close();
+
+        // A new server process carries on where the previous one stopped
+        writer = SharedRing.create(path);
+        writer.publish(packet(1, 4));
+        List<byte[]> packets = drain(reader);
+        assertEquals(2, packets.size());
+        assertArrayEquals(packet(1, 4), packets.get(1));
+        reader.close();
+        writer.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void openRejectsForeignFile() throws IOException {
+        File file = this.folder.newFile("foreign");
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.write(new byte[128]);
+        }
+        SharedRing.open(file.getPath());
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.openrealgps.lite;
+
+import android.location.GnssStatus;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Handler;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receiver payload decoding, binary and JSON, through to one inline location listener or GNSS status callback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecodeBenchmark {
+    private final Handler handler = new Handler();
+    private final JsonPullParser parser = new JsonPullParser();
+    private final LocationListener listener = location -> this.lastLocation = location;
+    private final GnssStatus.Callback callback = new GnssStatus.Callback() {
+        @Override
+        public void onSatelliteStatusChanged(GnssStatus status) {
+            DecodeBenchmark.this.lastStatus = status;
+        }
+    };
+    private Location lastLocation;
+    private GnssStatus lastStatus;
+
+    private byte[] jsonLocation;
+    private byte[] jsonSatellites;
+    private ByteBuffer binaryLocation;
+    private ByteBuffer binarySatellites;
+
+    @Setup
+    public void setUp() throws Exception {
+        LocationUpdater.getInstance().addLocationListener(LocationManager.GPS_PROVIDER, this.listener, this.handler, null, 0, 0);
+        SatelliteUpdater.getInstance().addGnssStatusCallback(this.callback, this.handler, null);
+
+        String location = Payloads.location();
+        String satellites = Payloads.satellites(SatelliteUpdater.MAX_SVS);
+        this.jsonLocation = location.getBytes(StandardCharsets.UTF_8);
+        this.jsonSatellites = satellites.getBytes(StandardCharsets.UTF_8);
+        this.binaryLocation = ByteBuffer.wrap(WireFormat.encode(new JSONArray(location)));
+        this.binarySatellites = ByteBuffer.wrap(WireFormat.encode(new JSONArray(satellites)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        LocationUpdater.getInstance().removeLocationListener(this.listener);
+        SatelliteUpdater.getInstance().removeGnssStatusCallback(this.callback);
+    }
+
+    @Benchmark
+    public Location binaryLocation() throws Exception {
+        this.binaryLocation.rewind();
+        WireFormat.decode(this.binaryLocation, this.handler);
+        return this.lastLocation;
+    }
+
+    @Benchmark
+    public Location jsonLocation() {
+        this.parser.reset(this.jsonLocation, 0, this.jsonLocation.length);
+        WireFormat.decodeJson(this.parser, this.handler);
+        return this.lastLocation;
+    }
+
+    @Benchmark
+    public GnssStatus binarySatellites() throws Exception {
+        this.binarySatellites.rewind();
+        WireFormat.decode(this.binarySatellites, this.handler);
+        return this.lastStatus;
+    }
+
+    @Benchmark
+    public GnssStatus jsonSatellites() {
+        this.parser.reset(this.jsonSatellites, 0, this.jsonSatellites.length);
+        WireFormat.decodeJson(this.parser, this.handler);
+        return this.lastStatus;
+    }
+}
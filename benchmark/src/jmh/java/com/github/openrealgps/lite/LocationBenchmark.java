@@ -0,0 +1,70 @@
+package com.github.openrealgps.lite;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Handler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot materialization, cached and uncached, and the fan-out of one update to 1, 10 and 100 inline listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LocationBenchmark {
+    @Param({"1", "10", "100"})
+    private int listeners;
+
+    private final Handler handler = new Handler();
+    private final LocationUpdater updater = LocationUpdater.getInstance();
+    private LocationListener[] registered;
+    private Location lastLocation;
+    private long timestamp = 1602914000000L;
+
+    @Setup
+    public void setUp() {
+        this.registered = new LocationListener[this.listeners];
+        for (int i = 0; i < this.listeners; i++) {
+            this.registered[i] = location -> this.lastLocation = location;
+            this.updater.addLocationListener(LocationManager.GPS_PROVIDER, this.registered[i], this.handler, null, 0, 0);
+        }
+        this.updater.setSatelliteCount(24);
+        this.updater.update(31.2304167, 121.4737021, 12.5, 13.4f, 271.3f, 3.9f, this.timestamp);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (LocationListener listener : this.registered) {
+            this.updater.removeLocationListener(listener);
+        }
+    }
+
+    @Benchmark
+    public Location getAsLocation() {
+        return this.updater.getAsLocation(LocationManager.GPS_PROVIDER);
+    }
+
+    // What every getAsLocation call cost before templates were cached
+    @Benchmark
+    public Location buildLocation() {
+        return this.updater.buildLocation(this.updater.getSnapshot(), LocationManager.GPS_PROVIDER, 24);
+    }
+
+    @Benchmark
+    public void fanOut(Blackhole blackhole) {
+        this.updater.update(31.2304167, 121.4737021, 12.5, 13.4f, 271.3f, 3.9f, ++this.timestamp);
+        blackhole.consume(this.lastLocation);
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.openrealgps.lite;
+
+import android.location.GnssStatus;
+import android.os.Handler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SatelliteBenchmark {
+    @Param({"16", "64"})
+    private int svCount;
+
+    private final Handler handler = new Handler();
+    private final SatelliteUpdater updater = SatelliteUpdater.getInstance();
+    private final GnssStatus.Callback callback = new GnssStatus.Callback() {
+        @Override
+        public void onSatelliteStatusChanged(GnssStatus status) {
+            SatelliteBenchmark.this.lastStatus = status;
+        }
+    };
+    private GnssStatus lastStatus;
+    private int[] prn;
+    private SatelliteSnapshot snapshot;
+    private Almanac almanac;
+
+    @Setup
+    public void setUp() {
+        this.updater.addGnssStatusCallback(this.callback, this.handler, null);
+        this.prn = new int[this.svCount];
+        for (int i = 0; i < this.svCount; i++) {
+            this.prn[i] = Payloads.prn(i);
+        }
+        putSatellites();
+        this.updater.update(this.svCount, this.handler);
+        this.snapshot = this.updater.getSnapshot();
+        this.almanac = Payloads.almanac(this.svCount, 1602914000000L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.updater.removeGnssStatusCallback(this.callback);
+    }
+
+    private void putSatellites() {
+        for (int i = 0; i < this.svCount; i++) {
+            this.updater.putSatellite(i, this.prn[i], 30, 45, i * 5);
+        }
+    }
+
+    @Benchmark
+    public int getSvidWithFlags() {
+        int sum = 0;
+        for (int prn : this.prn) {
+            sum += SatelliteUpdater.getSvidWithFlags(prn);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public GnssStatus getAsGnssStatus() throws Exception {
+        return this.updater.getAsGnssStatus(this.snapshot);
+    }
+
+    @Benchmark
+    public GnssStatus update() {
+        putSatellites();
+        this.updater.update(this.svCount, this.handler);
+        return this.lastStatus;
+    }
+
+    @Benchmark
+    public int computeSky() {
+        return this.almanac.computeSky(31.2304167, 121.4737021, 12.5, 1602914000000L, this.updater);
+    }
+}
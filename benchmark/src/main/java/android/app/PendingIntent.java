@@ -0,0 +1,27 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * JVM stand-in that hands sent intents to a callback.
+ */
+public class PendingIntent {
+    public static class CanceledException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public interface OnSend {
+        void onSend(Intent intent);
+    }
+
+    private final OnSend onSend;
+
+    public PendingIntent(OnSend onSend) {
+        this.onSend = onSend;
+    }
+
+    public void send(Context context, int code, Intent intent) throws CanceledException {
+        this.onSend.onSend(intent);
+    }
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+/**
+ * JVM stand-in.
+ */
+public abstract class Context {
+}
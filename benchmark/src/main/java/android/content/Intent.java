@@ -0,0 +1,20 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in.
+ */
+public class Intent {
+    private final Map<String, Object> extras = new HashMap<>();
+
+    public Intent putExtra(String name, Object value) {
+        this.extras.put(name, value);
+        return this;
+    }
+
+    public Object getExtra(String name) {
+        return this.extras.get(name);
+    }
+}
@@ -0,0 +1,9 @@
+package android.location;
+
+/**
+ * JVM stand-in.
+ */
+public class Criteria {
+    public static final int ACCURACY_FINE = 1;
+    public static final int POWER_MEDIUM = 2;
+}
@@ -0,0 +1,12 @@
+package android.location;
+
+/**
+ * JVM stand-in.
+ */
+public final class GnssCapabilities {
+    private final long capabilities;
+
+    private GnssCapabilities(long capabilities) {
+        this.capabilities = capabilities;
+    }
+}
@@ -0,0 +1,62 @@
+package android.location;
+
+/**
+ * JVM stand-in with the Android 11 hidden constructor and shift widths.
+ */
+public final class GnssStatus {
+    public static final int CONSTELLATION_UNKNOWN = 0;
+    public static final int CONSTELLATION_GPS = 1;
+    public static final int CONSTELLATION_SBAS = 2;
+    public static final int CONSTELLATION_GLONASS = 3;
+    public static final int CONSTELLATION_QZSS = 4;
+    public static final int CONSTELLATION_BEIDOU = 5;
+    public static final int CONSTELLATION_GALILEO = 6;
+
+    private static final int SVID_SHIFT_WIDTH = 12;
+    private static final int CONSTELLATION_TYPE_SHIFT_WIDTH = 8;
+
+    public abstract static class Callback {
+        public void onStarted() {
+        }
+
+        public void onStopped() {
+        }
+
+        public void onFirstFix(int ttffMillis) {
+        }
+
+        public void onSatelliteStatusChanged(GnssStatus status) {
+        }
+    }
+
+    private final int svCount;
+    private final int[] svidWithFlags;
+    private final float[] cn0DbHz;
+    private final float[] elevations;
+    private final float[] azimuths;
+    private final float[] carrierFrequencies;
+    private final float[] basebandCn0DbHz;
+
+    GnssStatus(int svCount, int[] svidWithFlags, float[] cn0DbHz, float[] elevations, float[] azimuths,
+               float[] carrierFrequencies, float[] basebandCn0DbHz) {
+        this.svCount = svCount;
+        this.svidWithFlags = svidWithFlags;
+        this.cn0DbHz = cn0DbHz;
+        this.elevations = elevations;
+        this.azimuths = azimuths;
+        this.carrierFrequencies = carrierFrequencies;
+        this.basebandCn0DbHz = basebandCn0DbHz;
+    }
+
+    public int getSatelliteCount() {
+        return this.svCount;
+    }
+
+    public int getSvid(int satelliteIndex) {
+        return this.svidWithFlags[satelliteIndex] >> SVID_SHIFT_WIDTH;
+    }
+
+    public float getCn0DbHz(int satelliteIndex) {
+        return this.cn0DbHz[satelliteIndex];
+    }
+}
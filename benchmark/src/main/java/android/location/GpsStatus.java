@@ -0,0 +1,34 @@
+package android.location;
+
+/**
+ * JVM stand-in with the Android 11 hidden setters.
+ */
+public final class GpsStatus {
+    public static final int GPS_EVENT_STARTED = 1;
+    public static final int GPS_EVENT_STOPPED = 2;
+    public static final int GPS_EVENT_FIRST_FIX = 3;
+    public static final int GPS_EVENT_SATELLITE_STATUS = 4;
+
+    public interface Listener {
+        void onGpsStatusChanged(int event);
+    }
+
+    public interface NmeaListener {
+        void onNmeaReceived(long timestamp, String nmea);
+    }
+
+    private int timeToFirstFix;
+    private int satelliteCount;
+
+    private GpsStatus() {
+    }
+
+    void setStatus(GnssStatus status, int timeToFirstFix) {
+        this.timeToFirstFix = timeToFirstFix;
+        this.satelliteCount = status.getSatelliteCount();
+    }
+
+    public int getTimeToFirstFix() {
+        return this.timeToFirstFix;
+    }
+}
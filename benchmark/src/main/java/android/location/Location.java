@@ -0,0 +1,112 @@
+package android.location;
+
+import android.os.Bundle;
+
+/**
+ * JVM stand-in with the fields the module sets.
+ */
+public class Location {
+    private final String provider;
+    private long time;
+    private long elapsedRealtimeNanos;
+    private double latitude;
+    private double longitude;
+    private double altitude;
+    private float speed;
+    private float bearing;
+    private float accuracy;
+    private Bundle extras;
+
+    public Location(String provider) {
+        this.provider = provider;
+    }
+
+    public Location(Location l) {
+        this.provider = l.provider;
+        this.time = l.time;
+        this.elapsedRealtimeNanos = l.elapsedRealtimeNanos;
+        this.latitude = l.latitude;
+        this.longitude = l.longitude;
+        this.altitude = l.altitude;
+        this.speed = l.speed;
+        this.bearing = l.bearing;
+        this.accuracy = l.accuracy;
+        this.extras = l.extras == null ? null : new Bundle(l.extras);
+    }
+
+    public String getProvider() {
+        return this.provider;
+    }
+
+    public long getTime() {
+        return this.time;
+    }
+
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public long getElapsedRealtimeNanos() {
+        return this.elapsedRealtimeNanos;
+    }
+
+    public void setElapsedRealtimeNanos(long elapsedRealtimeNanos) {
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+    }
+
+    public double getLatitude() {
+        return this.latitude;
+    }
+
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    public double getLongitude() {
+        return this.longitude;
+    }
+
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    public double getAltitude() {
+        return this.altitude;
+    }
+
+    public void setAltitude(double altitude) {
+        this.altitude = altitude;
+    }
+
+    public float getSpeed() {
+        return this.speed;
+    }
+
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    public float getBearing() {
+        return this.bearing;
+    }
+
+    public void setBearing(float bearing) {
+        this.bearing = bearing;
+    }
+
+    public float getAccuracy() {
+        return this.accuracy;
+    }
+
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+    }
+
+    public Bundle getExtras() {
+        return this.extras;
+    }
+
+    public void setExtras(Bundle extras) {
+        this.extras = extras == null ? null : new Bundle(extras);
+    }
+}
@@ -0,0 +1,13 @@
+package android.location;
+
+/**
+ * JVM stand-in with the constants the module uses.
+ */
+public class LocationManager {
+    public static final String GPS_PROVIDER = "gps";
+    public static final String NETWORK_PROVIDER = "network";
+    public static final String PASSIVE_PROVIDER = "passive";
+    public static final String FUSED_PROVIDER = "fused";
+    public static final String KEY_LOCATION_CHANGED = "location";
+    public static final String KEY_PROVIDER_ENABLED = "providerEnabled";
+}
@@ -0,0 +1,18 @@
+package android.location;
+
+import com.android.internal.location.ProviderProperties;
+
+/**
+ * JVM stand-in.
+ */
+public class LocationProvider {
+    private final String name;
+
+    public LocationProvider(String name, ProviderProperties properties) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+}
@@ -0,0 +1,8 @@
+package android.location;
+
+/**
+ * JVM stand-in.
+ */
+public interface OnNmeaMessageListener {
+    void onNmeaMessage(String message, long timestamp);
+}
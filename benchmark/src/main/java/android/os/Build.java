@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * JVM stand-in reporting Android 11, so the R code paths are measured.
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.R;
+    }
+
+    public static class VERSION_CODES {
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int P = 28;
+        public static final int Q = 29;
+        public static final int R = 30;
+    }
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM stand-in.
+ */
+public final class Bundle {
+    private final Map<String, Object> values;
+
+    public Bundle() {
+        this.values = new HashMap<>();
+    }
+
+    public Bundle(Bundle b) {
+        this.values = new HashMap<>(b.values);
+    }
+
+    public void putInt(String key, int value) {
+        this.values.put(key, value);
+    }
+
+    public int getInt(String key) {
+        Object value = this.values.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+}
@@ -0,0 +1,43 @@
+package android.os;
+
+/**
+ * JVM stand-in.
+ */
+public final class CancellationSignal {
+    public interface OnCancelListener {
+        void onCancel();
+    }
+
+    private boolean canceled;
+    private OnCancelListener listener;
+
+    public boolean isCanceled() {
+        synchronized (this) {
+            return this.canceled;
+        }
+    }
+
+    public void cancel() {
+        OnCancelListener listener;
+        synchronized (this) {
+            if (this.canceled) {
+                return;
+            }
+            this.canceled = true;
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onCancel();
+        }
+    }
+
+    public void setOnCancelListener(OnCancelListener listener) {
+        synchronized (this) {
+            this.listener = listener;
+            if (!this.canceled || listener == null) {
+                return;
+            }
+        }
+        listener.onCancel();
+    }
+}
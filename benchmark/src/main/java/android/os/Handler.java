@@ -0,0 +1,37 @@
+package android.os;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM stand-in: runs posted callbacks inline, or on an executor standing in for a looper thread.
+ */
+public class Handler {
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Handler-Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Executor executor;
+
+    public Handler() {
+        this(Runnable::run);
+    }
+
+    public Handler(Executor executor) {
+        this.executor = executor;
+    }
+
+    public final boolean post(Runnable r) {
+        this.executor.execute(r);
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        TIMER.schedule(() -> this.executor.execute(r), delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,23 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * JVM stand-in.
+ */
+public class Process {
+    private static final int PID = parsePid();
+
+    public static int myPid() {
+        return PID;
+    }
+
+    private static int parsePid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Integer.parseInt(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
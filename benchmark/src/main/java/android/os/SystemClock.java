@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * JVM stand-in. On Linux {@code System.nanoTime()} reads CLOCK_MONOTONIC, so like elapsed realtime on a device it is
+ * comparable across processes.
+ */
+public final class SystemClock {
+    private SystemClock() {
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000;
+    }
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+}
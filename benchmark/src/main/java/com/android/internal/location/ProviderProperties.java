@@ -0,0 +1,10 @@
+package com.android.internal.location;
+
+/**
+ * JVM stand-in.
+ */
+public final class ProviderProperties {
+    public ProviderProperties(boolean requiresNetwork, boolean requiresSatellite, boolean requiresCell, boolean hasMonetaryCost,
+                              boolean supportsAltitude, boolean supportsSpeed, boolean supportsBearing, int powerRequirement, int accuracy) {
+    }
+}
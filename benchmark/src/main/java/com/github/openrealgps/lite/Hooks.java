@@ -0,0 +1,20 @@
+package com.github.openrealgps.lite;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+
+/**
+ * JVM stand-in for the Xposed entry point, keeping only the callback dispatch the updaters share.
+ */
+public class Hooks {
+    public static void executeCallback(Runnable callback, Handler handler, Executor executor) {
+        if (handler != null) {
+            handler.post(callback);
+        } else if (executor != null) {
+            executor.execute(callback);
+        } else {
+            callback.run();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package com.github.openrealgps.lite;
+
+import android.location.GnssStatus;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load harness over loopback: runs a {@link LocalServer} in this JVM and a number of receiver JVMs, each
+ * running the real {@link LocalBroadcastReceiver} loop with fake listeners, then drives updates at a fixed rate and
+ * reports latency percentiles, drops and CPU per receiver.
+ * <pre>
+ * --receivers 4 --listeners 10 --rate 20 --satellites 64 --duration 30 --producers 1
+ * --transport http|stream|datagram --format binary|json --handler looper|inline
+ * </pre>
+ * Receivers take the producer's send time from the location timestamp, so producer-to-callback latency includes the
+ * ingestion hop. Timestamps come from {@code System.nanoTime()}, which is comparable across processes on Linux.
+ */
+public class LoadGenerator {
+    private static final String RECEIVER = "receiver";
+    private static final long DRAIN_TIME = 1000;
+
+    private final Map<String, String> options;
+    private final LatencyHistogram requestTime = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && RECEIVER.equals(args[0])) {
+            runReceiver(args[1], Integer.parseInt(args[2]), "looper".equals(args[3]));
+            return;
+        }
+        Map<String, String> options = new HashMap<>();
+        options.put("receivers", "4");
+        options.put("listeners", "10");
+        options.put("rate", "20");
+        options.put("satellites", "64");
+        options.put("duration", "30");
+        options.put("producers", "1");
+        options.put("transport", "http");
+        options.put("format", "binary");
+        options.put("handler", "looper");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(this.options.get(name));
+    }
+
+    private void run() throws Exception {
+        LocalServer server = new LocalServer(LocalServer.HTTP_PORT);
+        server.start();
+        server.call(new JSONArray().put("setBroadcastFormat").put(0).put(new JSONArray().put(this.options.get("format"))), null);
+
+        List<Process> receivers = new ArrayList<>();
+        List<BufferedReader> outputs = new ArrayList<>();
+        for (int i = 0; i < intOption("receivers"); i++) {
+            Process process = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                    "-cp", System.getProperty("java.class.path"), LoadGenerator.class.getName(),
+                    RECEIVER, "receiver-" + i, this.options.get("listeners"), this.options.get("handler"))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            if (!"ready".equals(output.readLine())) {
+                throw new IllegalStateException("Receiver " + i + " failed to start");
+            }
+            receivers.add(process);
+            outputs.add(output);
+        }
+
+        int rate = intOption("rate");
+        int producers = intOption("producers");
+        long duration = intOption("duration") * 1000L;
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(producers);
+        for (int i = 0; i < producers; i++) {
+            Producer producer;
+            switch (this.options.get("transport")) {
+                case "stream":
+                    producer = new StreamProducer();
+                    break;
+                case "datagram":
+                    producer = new DatagramProducer();
+                    break;
+                default:
+                    producer = new HttpProducer();
+                    break;
+            }
+            scheduler.scheduleAtFixedRate(producer, i * 1000000L / rate / producers, 1000000L / rate, TimeUnit.MICROSECONDS);
+        }
+        long start = System.nanoTime();
+        Thread.sleep(duration);
+        scheduler.shutdown();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        Thread.sleep(DRAIN_TIME);
+
+        // The first call asks for stats, the second returns the replies to it
+        JSONArray getStats = new JSONArray().put("getStats").put(0).put(new JSONArray());
+        server.call(getStats, null);
+        Thread.sleep(LocalServer.STATS_TIMEOUT);
+        JSONObject stats = server.call(getStats, null).getJSONObject(1);
+        Map<String, JSONObject> processes = new HashMap<>();
+        JSONArray list = stats.getJSONArray("processes");
+        for (int i = 0; i < list.length(); i++) {
+            processes.put(list.getJSONObject(i).optString("process"), list.getJSONObject(i));
+        }
+        List<JSONObject> exits = new ArrayList<>();
+        for (int i = 0; i < receivers.size(); i++) {
+            receivers.get(i).getOutputStream().close();
+            exits.add(new JSONObject(outputs.get(i).readLine()));
+            receivers.get(i).waitFor();
+        }
+        report(stats.getJSONObject("server"), processes, exits, elapsed);
+        System.exit(0);
+    }
+
+    private void report(JSONObject server, Map<String, JSONObject> processes, List<JSONObject> exits, long elapsed) throws Exception {
+        long packets = server.getLong("sequence");
+        JSONObject request = this.requestTime.toJson();
+        System.out.println(this.options);
+        System.out.printf("producer: %d calls (%.1f/s), %d failed, %d rejected, request us p50 %d p99 %d max %d, %d packets broadcast%n",
+                this.sent.get(), this.sent.get() * 1000.0 / elapsed, this.failed.get(), server.getLong("rejectedRequests"),
+                request.getLong("p50"), request.getLong("p99"), request.getLong("max"), packets);
+        System.out.printf("%-12s %8s %7s %6s %6s %7s %9s %28s %28s %10s %6s%n", "receiver", "parsed", "drop%", "lost", "stale",
+                "expired", "callbacks", "producer->callback us", "queue us", "cpu ms", "cpu%");
+        for (JSONObject exit : exits) {
+            JSONObject process = processes.get(exit.getString("process"));
+            if (process == null) {
+                System.out.printf("%-12s no stats reply%n", exit.getString("process"));
+                continue;
+            }
+            long parsed = process.getLong("packetsParsed");
+            long callbacks = process.getJSONObject("callbacks").getLong("location") + process.getJSONObject("callbacks").getLong("gnssStatus");
+            System.out.printf("%-12s %8d %6.2f%% %6d %6d %7d %9d %28s %28s %10d %5.1f%%%n", exit.getString("process"), parsed,
+                    packets == 0 ? 0 : 100.0 * (packets - parsed) / packets, process.getLong("packetsLost"),
+                    process.getLong("packetsStale"), process.getLong("packetsExpired"), callbacks,
+                    percentiles(exit.getJSONObject("producerToCallback")), percentiles(process.getJSONObject("queueTime")),
+                    exit.getLong("cpuMillis"), 100.0 * exit.getLong("cpuMillis") / elapsed);
+        }
+    }
+
+    private static String percentiles(JSONObject histogram) {
+        return histogram.optLong("p50") + "/" + histogram.optLong("p90") + "/" + histogram.optLong("p99") + "/" + histogram.optLong("max");
+    }
+
+    private abstract class Producer implements Runnable {
+        private final Object id;
+        private final byte[] satellitesCall;
+
+        Producer(Object id) throws Exception {
+            this.id = id;
+            int satellites = intOption("satellites");
+            this.satellitesCall = satellites > 0 ? encode(new JSONArray().put("updateSatellites").put(id)
+                    .put(new JSONArray().put(Payloads.satelliteList(satellites)))) : null;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Position is jittered so no layer can skip a repeated fix
+                long now = SystemClock.elapsedRealtimeNanos() / 1000;
+                JSONObject location = new JSONObject()
+                        .put("latitude", 31.2304167 + (now % 1000000) * 1e-9)
+                        .put("longitude", 121.4737021)
+                        .put("altitude", 12.5)
+                        .put("speed", 13.4)
+                        .put("bearing", 271.3)
+                        .put("accuracy", 3.9)
+                        .put("timestamp", now);
+                timedSend(encode(new JSONArray().put("updateLocation").put(this.id).put(new JSONArray().put(location))));
+                if (this.satellitesCall != null) {
+                    timedSend(this.satellitesCall);
+                }
+            } catch (Exception e) {
+                LoadGenerator.this.failed.incrementAndGet();
+            }
+        }
+
+        private void timedSend(byte[] call) throws Exception {
+            long start = System.nanoTime();
+            if (send(call)) {
+                LoadGenerator.this.requestTime.record((System.nanoTime() - start) / 1000);
+            } else {
+                LoadGenerator.this.failed.incrementAndGet();
+            }
+            LoadGenerator.this.sent.incrementAndGet();
+        }
+
+        byte[] encode(JSONArray call) throws Exception {
+            return call.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        abstract boolean send(byte[] call) throws Exception;
+    }
+
+    private class HttpProducer extends Producer {
+        private final URL url;
+
+        HttpProducer() throws Exception {
+            super(0);
+            this.url = new URL("http://127.0.0.1:" + LocalServer.HTTP_PORT + "/");
+        }
+
+        @Override
+        boolean send(byte[] call) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(call.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(call);
+                }
+                if (connection.getResponseCode() != 200) {
+                    return false;
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    JSONArray reply = new JSONArray(new String(readAll(in), StandardCharsets.UTF_8));
+                    return reply.optInt(0, 1) == 0;
+                }
+            } catch (IOException e) {
+                return false;
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private class StreamProducer extends Producer {
+        private final Socket socket;
+        private final OutputStream out;
+
+        StreamProducer() throws Exception {
+            // Null ids are not acked, so only the write is timed
+            super(JSONObject.NULL);
+            this.socket = new Socket("127.0.0.1", LocalServer.STREAM_PORT);
+            this.socket.setTcpNoDelay(true);
+            this.out = this.socket.getOutputStream();
+        }
+
+        @Override
+        boolean send(byte[] call) throws IOException {
+            this.out.write(call);
+            this.out.write('\n');
+            this.out.flush();
+            return true;
+        }
+    }
+
+    private class DatagramProducer extends Producer {
+        private final DatagramSocket socket;
+        private final InetSocketAddress address;
+
+        DatagramProducer() throws Exception {
+            super(JSONObject.NULL);
+            this.socket = new DatagramSocket();
+            this.address = new InetSocketAddress("127.0.0.1", LocalServer.DATAGRAM_PORT);
+        }
+
+        @Override
+        byte[] encode(JSONArray call) throws Exception {
+            return WireFormat.encode(call);
+        }
+
+        @Override
+        boolean send(byte[] call) throws IOException {
+            this.socket.send(new DatagramPacket(call, call.length, this.address));
+            return true;
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] buf = new byte[1024];
+        int length = 0;
+        int n;
+        while ((n = in.read(buf, length, buf.length - length)) >= 0) {
+            length += n;
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+        return Arrays.copyOf(buf, length);
+    }
+
+    /**
+     * Receiver process: registers the fake listeners, which start the broadcast loop, and once stdin closes prints its
+     * CPU time and producer-to-callback histogram as one JSON line.
+     */
+    private static void runReceiver(String name, int listeners, boolean looper) throws Exception {
+        PipelineStats.getInstance().setProcessName(name);
+        Handler handler = looper ? new Handler(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "main");
+            thread.setDaemon(true);
+            return thread;
+        })) : new Handler();
+        LocalBroadcastReceiver.init(handler);
+        LatencyHistogram producerToCallback = new LatencyHistogram();
+        for (int i = 0; i < listeners; i++) {
+            LocationUpdater.getInstance().addLocationListener(LocationManager.GPS_PROVIDER,
+                    location -> producerToCallback.record(SystemClock.elapsedRealtimeNanos() / 1000 - location.getTime()),
+                    handler, null, 0, 0);
+            SatelliteUpdater.getInstance().addGnssStatusCallback(new GnssStatus.Callback() {
+                @Override
+                public void onSatelliteStatusChanged(GnssStatus status) {
+                }
+            }, handler, null);
+        }
+        System.out.println("ready");
+        System.out.flush();
+
+        while (System.in.read() >= 0) {
+            // Parent closes stdin when the run is over
+        }
+        long cpuNanos = ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+        System.out.println(new JSONObject()
+                .put("process", name)
+                .put("cpuMillis", cpuNanos / 1000000)
+                .put("producerToCallback", producerToCallback.toJson()));
+        System.out.flush();
+        System.exit(0);
+    }
+}
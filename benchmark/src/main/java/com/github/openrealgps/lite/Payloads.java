@@ -0,0 +1,54 @@
+package com.github.openrealgps.lite;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * API request bodies shaped like a real producer's.
+ */
+final class Payloads {
+    // GPS, GLONASS, Galileo and BeiDou PRNs
+    private static final int[] PRN_BASES = {1, 65, 301, 201};
+
+    private Payloads() {
+    }
+
+    static String location() {
+        return "[\"updateLocation\",1,[{\"latitude\":31.2304167,\"longitude\":121.4737021,\"altitude\":12.5,"
+                + "\"speed\":13.4,\"bearing\":271.3,\"accuracy\":3.9,\"timestamp\":1602914000123}]]";
+    }
+
+    static String satellites(int count) throws Exception {
+        return new JSONArray().put("updateSatellites").put(1).put(new JSONArray().put(satelliteList(count))).toString();
+    }
+
+    static JSONArray satelliteList(int count) throws Exception {
+        JSONArray svs = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            svs.put(new JSONObject()
+                    .put("prn", prn(i))
+                    .put("snr", 20 + i % 25 + 0.5)
+                    .put("elv", 5 + i * 7 % 80 + 0.25)
+                    .put("azm", i * 37 % 360 + 0.75));
+        }
+        return svs;
+    }
+
+    /**
+     * Six GPS-like orbital planes with the satellites spread evenly, PRNs as in {@link #prn(int)}.
+     */
+    static Almanac almanac(int count, long time) {
+        int week = (int) ((time / 1000 - 315964800 + 18) / 604800);
+        Almanac almanac = new Almanac(count);
+        for (int i = 0; i < count; i++) {
+            int plane = i % 6;
+            almanac.set(i, prn(i), week, 0.01, 405504, 0.9599, -8e-9, 5153.6, -Math.PI + plane * Math.PI / 3, 0.5,
+                    -Math.PI + i / 6 * 2 * Math.PI / Math.max(count / 6, 1) + plane * 0.3);
+        }
+        return almanac;
+    }
+
+    static int prn(int i) {
+        return PRN_BASES[i % PRN_BASES.length] + i / PRN_BASES.length;
+    }
+}
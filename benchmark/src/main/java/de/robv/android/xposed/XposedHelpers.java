@@ -0,0 +1,96 @@
+package de.robv.android.xposed;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * JVM stand-in implementing the lookups the module uses with plain reflection.
+ */
+public final class XposedHelpers {
+    public static final class ClassNotFoundError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        public ClassNotFoundError(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private XposedHelpers() {
+    }
+
+    public static Class<?> findClass(String className, ClassLoader classLoader) {
+        try {
+            return Class.forName(className, false, classLoader != null ? classLoader : XposedHelpers.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new ClassNotFoundError(e);
+        }
+    }
+
+    public static Constructor<?> findConstructorExact(Class<?> clazz, Object... parameterTypes) {
+        try {
+            Constructor<?> constructor = clazz.getDeclaredConstructor(toClasses(parameterTypes));
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new NoSuchMethodError(e.getMessage());
+        }
+    }
+
+    public static Constructor<?> findConstructorExact(String className, ClassLoader classLoader, Object... parameterTypes) {
+        return findConstructorExact(findClass(className, classLoader), parameterTypes);
+    }
+
+    public static Constructor<?> findConstructorExactIfExists(Class<?> clazz, Object... parameterTypes) {
+        try {
+            return findConstructorExact(clazz, parameterTypes);
+        } catch (NoSuchMethodError e) {
+            return null;
+        }
+    }
+
+    public static Method findMethodExactIfExists(Class<?> clazz, String methodName, Object... parameterTypes) {
+        try {
+            Method method = clazz.getDeclaredMethod(methodName, toClasses(parameterTypes));
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    public static int getStaticIntField(Class<?> clazz, String fieldName) {
+        try {
+            Field field = clazz.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field.getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new NoSuchFieldError(fieldName);
+        }
+    }
+
+    public static Object callMethod(Object obj, String methodName, Object... args) {
+        for (Method method : obj.getClass().getMethods()) {
+            if (method.getName().equals(methodName) && method.getParameterTypes().length == args.length) {
+                try {
+                    return method.invoke(obj, args);
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        throw new NoSuchMethodError(obj.getClass().getName() + "#" + methodName);
+    }
+
+    public static Object callStaticMethod(Class<?> clazz, String methodName, Object... args) {
+        throw new NoSuchMethodError(clazz.getName() + "#" + methodName);
+    }
+
+    private static Class<?>[] toClasses(Object[] parameterTypes) {
+        Class<?>[] classes = new Class<?>[parameterTypes.length];
+        for (int i = 0; i < parameterTypes.length; i++) {
+            classes[i] = (Class<?>) parameterTypes[i];
+        }
+        return classes;
+    }
+}